@@ -1,22 +1,24 @@
-load("//tools/bzl:maven_jar.bzl", "maven_jar", "GERRIT", "MAVEN_CENTRAL")
+load("//tools/bzl:maven_jar.bzl", "maven_jar")
 
 def external_plugin_deps():
+  # Benchmarks only; not packaged with the plugin
   maven_jar(
-    name = 'digester3',
-    artifact = 'org.apache.commons:commons-digester3:3.2',
-    sha1 = 'c3f68c5ff25ec5204470fd8fdf4cb8feff5e8a79',
-    exclude = ['META-INF/LICENSE.txt', 'META-INF/NOTICE.txt'],
+      name = "jmh-core",
+      artifact = "org.openjdk.jmh:jmh-core:1.21",
+      sha1 = "442447101f63074c61063858033fbfde8a076873",
   )
-
   maven_jar(
-    name = 'beanutils',
-    artifact = 'commons-beanutils:commons-beanutils:1.8.3',
-    sha1 = '686ef3410bcf4ab8ce7fd0b899e832aaba5facf7',
-    exclude = ['META-INF/LICENSE.txt', 'META-INF/NOTICE.txt'],
+      name = "jmh-generator-annprocess",
+      artifact = "org.openjdk.jmh:jmh-generator-annprocess:1.21",
+      sha1 = "7aac374614a8a76cad16b91f1a4419d31a7dcda3",
+  )
+  maven_jar(
+      name = "jopt-simple",
+      artifact = "net.sf.jopt-simple:jopt-simple:4.6",
+      sha1 = "306816fb57cf94f108a43c95731b08934dcae15c",
   )
-
   maven_jar(
-    name = 'logging',
-    artifact = 'commons-logging:commons-logging:1.1.1',
-    sha1 = '5043bfebc3db072ed80fbd362e7caf00e885d8ae',
+      name = "commons-math3",
+      artifact = "org.apache.commons:commons-math3:3.2",
+      sha1 = "ec2544ab27e110d2d431bdad7d538ed509b21e62",
   )
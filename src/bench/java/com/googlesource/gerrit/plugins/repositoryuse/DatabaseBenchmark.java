@@ -0,0 +1,113 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.util.Providers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes batches of uses and ref states to an in-memory H2 database, each
+ * batch updating the rows written by the previous one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DatabaseBenchmark {
+  @Param({"1", "100"})
+  private int batchSize;
+
+  private SQLDriver sql;
+  // Two versions of each batch, written alternately so every row changes
+  private List<List<Usage>> usages;
+  private List<List<Ref>> refs;
+  private int round;
+
+  @Setup
+  public void setUp() {
+    org.eclipse.jgit.lib.Config cfg = new org.eclipse.jgit.lib.Config();
+    cfg.setString("plugin", "repository-usage", "database",
+        "mem:bench;DB_CLOSE_DELAY=-1");
+    Config.load(new PluginConfig("repository-usage", cfg));
+    sql = new SQLDriver(new Metrics(new DisabledMetricMaker(),
+        Providers.<SQLDriver> of(null), Providers.<RefUpdateQueue> of(null),
+        Providers.<ScanProgress> of(null)));
+    Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(SQLDriver.class).toInstance(sql);
+        bind(DependencyGraph.class).toInstance(new DependencyGraph(0));
+        requestStaticInjection(Schema.class, Usage.Table.class,
+            Ref.Table.class);
+      }
+    });
+
+    usages = new ArrayList<>();
+    refs = new ArrayList<>();
+    for (String revision : new String[] {"master", "stable"}) {
+      List<Usage> u = new ArrayList<>(batchSize);
+      List<Ref> r = new ArrayList<>(batchSize);
+      for (int i = 0; i < batchSize; i++) {
+        u.add(new Usage("host.example/platform/manifest:default.xml",
+            "refs/heads/master", "host.example/project" + i, revision));
+        r.add(new Ref("host.example/project" + i, "refs/heads/master",
+            revision));
+      }
+      usages.add(u);
+      refs.add(r);
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws SQLException {
+    sql.execute("DROP ALL OBJECTS");
+    sql.stop();
+  }
+
+  @Benchmark
+  public boolean usageUpdate() {
+    return Usage.update(usages.get(round++ & 1),
+        Collections.<Usage> emptySet());
+  }
+
+  @Benchmark
+  public void refSaveAll() {
+    Ref.saveAll(refs.get(round++ & 1));
+  }
+}
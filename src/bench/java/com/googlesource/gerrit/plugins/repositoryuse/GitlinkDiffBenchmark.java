@@ -0,0 +1,121 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.eclipse.jgit.dircache.DirCache;
+import org.eclipse.jgit.dircache.DirCacheBuilder;
+import org.eclipse.jgit.dircache.DirCacheEntry;
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looks for gitlink changes between generated trees of 100 directories,
+ * where either one file or the only gitlink changed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class GitlinkDiffBenchmark {
+  private static final int DIRECTORIES = 100;
+
+  @Param({"1000", "10000"})
+  private int files;
+
+  private InMemoryRepository repo;
+  private ObjectReader reader;
+  private ObjectId base;
+  private ObjectId fileChanged;
+  private ObjectId gitlinkChanged;
+
+  @Setup
+  public void setUp() throws IOException {
+    repo = new InMemoryRepository(new DfsRepositoryDescription("bench"));
+    try (ObjectInserter inserter = repo.newObjectInserter()) {
+      ObjectId commit = ObjectId.fromRaw(new int[] {1, 0, 0, 0, 0});
+      ObjectId other = ObjectId.fromRaw(new int[] {2, 0, 0, 0, 0});
+      base = tree(inserter, -1, commit);
+      fileChanged = tree(inserter, files / 2, commit);
+      gitlinkChanged = tree(inserter, -1, other);
+      inserter.flush();
+    }
+    reader = repo.newObjectReader();
+  }
+
+  @TearDown
+  public void tearDown() {
+    reader.close();
+    repo.close();
+  }
+
+  @Benchmark
+  public boolean fileChanged() throws IOException {
+    return GitlinkDiff.hasChanges(reader, base, fileChanged);
+  }
+
+  @Benchmark
+  public boolean gitlinkChanged() throws IOException {
+    return GitlinkDiff.hasChanges(reader, base, gitlinkChanged);
+  }
+
+  /**
+   * @param changed the file to give different content, -1 for none
+   * @param gitlink the commit of the gitlink at {@code external/sub}
+   */
+  private ObjectId tree(ObjectInserter inserter, int changed,
+      ObjectId gitlink) throws IOException {
+    DirCache dc = DirCache.newInCore();
+    DirCacheBuilder b = dc.builder();
+    for (int i = 0; i < files; i++) {
+      String content = i == changed ? "changed " + i : "file " + i;
+      DirCacheEntry e = new DirCacheEntry(
+          "dir" + (i % DIRECTORIES) + "/file" + i);
+      e.setFileMode(FileMode.REGULAR_FILE);
+      e.setObjectId(
+          inserter.insert(Constants.OBJ_BLOB, content.getBytes(UTF_8)));
+      b.add(e);
+    }
+    DirCacheEntry e = new DirCacheEntry("external/sub");
+    e.setFileMode(FileMode.GITLINK);
+    e.setObjectId(gitlink);
+    b.add(e);
+    b.finish();
+    return dc.writeTree(inserter);
+  }
+}
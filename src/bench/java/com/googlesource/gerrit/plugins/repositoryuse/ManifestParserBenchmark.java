@@ -0,0 +1,73 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/** Parses and resolves synthetic manifests of growing size. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ManifestParserBenchmark {
+  @Param({"100", "1000", "10000"})
+  private int projects;
+
+  private byte[] manifest;
+
+  @Setup
+  public void setUp() {
+    StringBuilder b = new StringBuilder();
+    b.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<manifest>\n");
+    b.append("  <remote name=\"origin\" fetch=\"https://host.example/\"/>\n");
+    b.append("  <remote name=\"mirror\" fetch=\"../\"/>\n");
+    b.append("  <default remote=\"origin\" revision=\"master\"/>\n");
+    for (int i = 0; i < projects; i++) {
+      b.append("  <project name=\"platform/group").append(i % 50)
+          .append("/project").append(i).append("\" path=\"group")
+          .append(i % 50).append("/project").append(i).append('"');
+      // A realistic share of projects pinned elsewhere
+      if (i % 10 == 0) {
+        b.append(" remote=\"mirror\" revision=\"refs/tags/v1.").append(i)
+            .append('"');
+      }
+      b.append(" groups=\"default\"/>\n");
+    }
+    b.append("</manifest>\n");
+    manifest = b.toString().getBytes(UTF_8);
+  }
+
+  @Benchmark
+  public Map<String, String> parseManifest() {
+    return new ManifestParser().parseManifest(manifest);
+  }
+}
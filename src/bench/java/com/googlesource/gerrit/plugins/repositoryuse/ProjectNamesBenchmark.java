@@ -0,0 +1,81 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Normalizes submodule and manifest URLs of each supported style, with the
+ * name cache disabled (cacheSize 0) and warm.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ProjectNamesBenchmark {
+  private static final String PROJECT = "platform/build";
+
+  @Param({"relative", "absolute", "url", "scp", "unc"})
+  private String style;
+
+  @Param({"0", "4096"})
+  private int cacheSize;
+
+  private ProjectNames names;
+  private String destination;
+
+  @Setup
+  public void setUp() {
+    names = new ProjectNames("https://gerrit.example/", cacheSize);
+    switch (style) {
+      case "relative":
+        destination = "../tools/repo.git";
+        break;
+      case "absolute":
+        destination = "/platform/tools/repo";
+        break;
+      case "url":
+        destination = "https://host.example/platform/tools/repo.git";
+        break;
+      case "scp":
+        destination = "git@host.example:platform/tools/repo";
+        break;
+      case "unc":
+        destination = "//server/share/repo";
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown style: " + style);
+    }
+  }
+
+  @Benchmark
+  public String normalizePath() {
+    return names.normalizePath(PROJECT, destination, false);
+  }
+}
@@ -14,6 +14,7 @@
 
 package com.googlesource.gerrit.plugins.repositoryuse;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.gerrit.extensions.annotations.PluginName;
 import com.google.gerrit.server.config.PluginConfig;
 import com.google.gerrit.server.config.PluginConfigFactory;
@@ -25,6 +26,10 @@ public class Config {
     H2, POSTGRESQL
   }
 
+  public enum QueuePolicy {
+    BLOCK, RESCAN
+  }
+
   @Inject
   private static PluginConfigFactory cfg;
 
@@ -43,17 +48,65 @@ public class Config {
   private static String databaseHost;
   private static String databaseUser;
   private static String databasePassword;
+  private static int updateThreads;
+  private static int updateQueueSize;
+  private static QueuePolicy updateQueuePolicy;
+  private static long updateQueueTimeout;
+  private static int manifestCacheSize;
+  private static int scanThreads;
+  private static int scanThreadsPerProject;
+  private static int databaseWriteLimit;
+  private static int scanRateLimit;
+  private static long scanMaxYield;
+  private static int databaseFetchSize;
+  private static int databasePoolInitialSize;
+  private static int databasePoolMaxActive;
+  private static int databasePoolMaxIdle;
+  private static long databasePoolMaxWait;
+  private static String databaseValidationQuery;
+  private static int databaseMaxOpenPreparedStatements;
+  private static int dependencyCacheSize;
+  private static int projectNameCacheSize;
+  private static long maxManifestSize;
 
   private static void readConfig() {
-    PluginConfig pc = cfg.getFromGerritConfig(pluginName);
+    load(cfg.getFromGerritConfig(pluginName));
+  }
+
+  @VisibleForTesting
+  static void load(PluginConfig pc) {
     refreshAllSubmodules = pc.getBoolean("refreshAllSubmodules", false);
     parseManifests = pc.getBoolean("parseManifests", true);
     databaseType = pc.getEnum("databaseType", Database.H2);
-    database = pc.getString("database",
-        sitePaths.site_path.resolve("db/UsageDB").toString());
+    database = pc.getString("database", null);
+    if (database == null) {
+      database = sitePaths.site_path.resolve("db/UsageDB").toString();
+    }
     databaseHost = pc.getString("databaseHost", "");
     databaseUser = pc.getString("databaseUser", "");
     databasePassword = pc.getString("databasePassword", "");
+    updateThreads = pc.getInt("updateThreads", 2);
+    updateQueueSize = pc.getInt("updateQueueSize", 1000);
+    updateQueuePolicy = pc.getEnum("updateQueuePolicy", QueuePolicy.RESCAN);
+    updateQueueTimeout = pc.getLong("updateQueueTimeout", 10000);
+    manifestCacheSize = pc.getInt("manifestCacheSize", 1024);
+    scanThreads = pc.getInt("scanThreads", 1);
+    scanThreadsPerProject = pc.getInt("scanThreadsPerProject", 1);
+    databaseWriteLimit = pc.getInt("databaseWriteLimit", 0);
+    scanRateLimit = pc.getInt("scanRateLimit", 0);
+    scanMaxYield = pc.getLong("scanMaxYield", 100);
+    databaseFetchSize = pc.getInt("databaseFetchSize", 1000);
+    databasePoolInitialSize = pc.getInt("databasePoolInitialSize", 5);
+    databasePoolMaxActive = pc.getInt("databasePoolMaxActive", 8);
+    databasePoolMaxIdle = pc.getInt("databasePoolMaxIdle", 8);
+    databasePoolMaxWait = pc.getLong("databasePoolMaxWait", 30000);
+    databaseValidationQuery =
+        pc.getString("databaseValidationQuery", "SELECT 1");
+    databaseMaxOpenPreparedStatements =
+        pc.getInt("databaseMaxOpenPreparedStatements", 100);
+    dependencyCacheSize = pc.getInt("dependencyCacheSize", 1024);
+    projectNameCacheSize = pc.getInt("projectNameCacheSize", 4096);
+    maxManifestSize = pc.getLong("maxManifestSize", 32 * 1024 * 1024);
     configParsed = true;
   }
 
@@ -105,4 +158,144 @@ public class Config {
     }
     return databasePassword;
   }
+
+  public static int getUpdateThreads() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return updateThreads;
+  }
+
+  public static int getUpdateQueueSize() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return updateQueueSize;
+  }
+
+  public static QueuePolicy getUpdateQueuePolicy() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return updateQueuePolicy;
+  }
+
+  public static long getUpdateQueueTimeout() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return updateQueueTimeout;
+  }
+
+  public static int getManifestCacheSize() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return manifestCacheSize;
+  }
+
+  public static int getScanThreads() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return scanThreads;
+  }
+
+  public static int getScanThreadsPerProject() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return scanThreadsPerProject;
+  }
+
+  public static int getDatabaseWriteLimit() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return databaseWriteLimit;
+  }
+
+  public static int getScanRateLimit() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return scanRateLimit;
+  }
+
+  public static long getScanMaxYield() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return scanMaxYield;
+  }
+
+  public static int getDatabaseFetchSize() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return databaseFetchSize;
+  }
+
+  public static int getDatabasePoolInitialSize() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return databasePoolInitialSize;
+  }
+
+  public static int getDatabasePoolMaxActive() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return databasePoolMaxActive;
+  }
+
+  public static int getDatabasePoolMaxIdle() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return databasePoolMaxIdle;
+  }
+
+  public static long getDatabasePoolMaxWait() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return databasePoolMaxWait;
+  }
+
+  public static String getDatabaseValidationQuery() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return databaseValidationQuery;
+  }
+
+  public static int getDatabaseMaxOpenPreparedStatements() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return databaseMaxOpenPreparedStatements;
+  }
+
+  public static int getDependencyCacheSize() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return dependencyCacheSize;
+  }
+
+  public static int getProjectNameCacheSize() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return projectNameCacheSize;
+  }
+
+  public static long getMaxManifestSize() {
+    if (!configParsed) {
+      readConfig();
+    }
+    return maxManifestSize;
+  }
 }
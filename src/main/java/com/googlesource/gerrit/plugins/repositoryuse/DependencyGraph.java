@@ -0,0 +1,738 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-memory copy of the RepoUsage table, indexed in both directions.
+ * <p>
+ * Projects, manifest paths and branches are interned to int ids and edges
+ * are kept in primitive arrays per project, so the whole graph can be
+ * traversed without touching the database. Uses found in a manifest are
+ * stored with the project owning the manifest and the manifest path, so
+ * that users of the manifest's project are reached transitively.
+ * <p>
+ * The graph is loaded when the plugin starts and kept current by
+ * {@link Usage.Table} after each successful write. Results of traversals
+ * are cached, and dropped when a write changes an edge of a project the
+ * traversal expanded.
+ */
+@Singleton
+public class DependencyGraph implements LifecycleListener {
+  private static final Logger log =
+      LoggerFactory.getLogger(DependencyGraph.class);
+  private static final int NO_PATH = -1;
+
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Names projects = new Names();
+  private final Names labels = new Names();
+  // Edges to the projects used by each project, and from their users
+  private Edges[] dependencies = new Edges[0];
+  private Edges[] users = new Edges[0];
+  private int edgeCount;
+  // Projects whose outgoing (sources) or incoming (targets) edges changed
+  // since cached results were last invalidated; guarded by the write lock
+  private final BitSet changedSources = new BitSet();
+  private final BitSet changedTargets = new BitSet();
+  private final Cache<Query, Result> closures;
+
+  public DependencyGraph() {
+    this(Config.getDependencyCacheSize());
+  }
+
+  DependencyGraph(int cacheSize) {
+    closures =
+        CacheBuilder.newBuilder().maximumSize(Math.max(0, cacheSize)).build();
+  }
+
+  @Override
+  public void start() {
+    load();
+  }
+
+  @Override
+  public void stop() {
+    // no-op
+  }
+
+  /** Replace the contents of the graph with the RepoUsage table. */
+  public void load() {
+    long start = System.currentTimeMillis();
+    lock.writeLock().lock();
+    try {
+      dependencies = new Edges[0];
+      users = new Edges[0];
+      edgeCount = 0;
+      closures.invalidateAll();
+      Usage.forEach(new SQLDriver.RowHandler<Usage>() {
+        @Override
+        public void handle(Usage u) {
+          put(u.getProject(), u.getBranch(), u.getDestination(),
+              u.getRef());
+        }
+      });
+      changedSources.clear();
+      changedTargets.clear();
+      log.info(String.format("Loaded %d uses of %d projects in %d ms",
+          edgeCount, projects.size(), System.currentTimeMillis() - start));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @param project canonical name of the used project
+   * @return the direct users of the project
+   */
+  public List<UsageInfo> getUsers(String project) {
+    return traverse(new Query(project, true).setMaxDepth(1)).getUses();
+  }
+
+  /**
+   * @param project canonical name of the using project
+   * @return the projects directly used by the project
+   */
+  public List<UsageInfo> getDependencies(String project) {
+    return traverse(new Query(project, false).setMaxDepth(1)).getUses();
+  }
+
+  /**
+   * Find the uses reachable from a project through visible projects only.
+   * <p>
+   * Uses leading to a hidden project are skipped as if they did not exist,
+   * so hidden projects are neither listed nor walked through, and do not
+   * count towards the fan-out limit.
+   *
+   * @param query where to start and how far to go
+   * @param visibility the projects the caller may see
+   * @return the uses found, nearest first
+   */
+  public Result traverse(Query query, Visibility visibility) {
+    Result result = traverse(query);
+    if (!result.isTruncated() && result.isVisible(visibility)) {
+      // Nothing hidden was reached, so filtering would change nothing
+      return result;
+    }
+    lock.readLock().lock();
+    try {
+      // Depends on the caller, so not cached
+      return compute(query, visibility);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Find the uses reachable from a project, breadth-first.
+   * <p>
+   * Each project is expanded once, so cycles terminate the walk; uses
+   * leading back to a project on the path to the current one are marked as
+   * such.
+   *
+   * @param query where to start and how far to go
+   * @return the uses found, nearest first
+   */
+  public Result traverse(Query query) {
+    lock.readLock().lock();
+    try {
+      // Cached under the read lock, so no write can invalidate the cache
+      // between computing a result and storing it.
+      Result result = closures.getIfPresent(query);
+      if (result == null) {
+        result = compute(query, null);
+        // An unknown project has no edges whose changes could be tracked
+        if (projects.find(query.project) >= 0) {
+          closures.put(query, result);
+        }
+      }
+      return result;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Apply a change that was written to the RepoUsage table. */
+  void update(Collection<Usage> saved, Collection<Usage> deleted) {
+    lock.writeLock().lock();
+    try {
+      for (Usage u : deleted) {
+        remove(u.getProject(), u.getBranch(), u.getDestination());
+      }
+      for (Usage u : saved) {
+        put(u.getProject(), u.getBranch(), u.getDestination(),
+            u.getRef());
+      }
+      invalidateChanged();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Add a single use, as {@link Usage#save()} does. */
+  @VisibleForTesting
+  void add(String project, String branch, String destination, String ref) {
+    lock.writeLock().lock();
+    try {
+      put(project, branch, destination, ref);
+      invalidateChanged();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Remove all uses of a branch, from submodules and manifests alike, as
+   * {@link Usage#deleteByBranch} does.
+   */
+  void deleteByBranch(String project, String branch) {
+    lock.writeLock().lock();
+    try {
+      int node = projects.find(project);
+      int b = labels.find(branch);
+      if (node < 0 || b < 0 || node >= dependencies.length
+          || dependencies[node] == null) {
+        return;
+      }
+      Edges out = dependencies[node];
+      for (int i = out.size - 1; i >= 0; i--) {
+        if (out.branches[i] == b) {
+          int target = out.nodes[i];
+          int path = out.paths[i];
+          users[target].remove(node, path, b);
+          out.remove(target, path, b);
+          edgeCount--;
+          changedSources.set(node);
+          changedTargets.set(target);
+        }
+      }
+      invalidateChanged();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Drop the cached results that read the edges of a project changed since
+   * the last call.
+   */
+  private void invalidateChanged() {
+    if (changedSources.isEmpty()) {
+      return;
+    }
+    Iterator<Result> it = closures.asMap().values().iterator();
+    while (it.hasNext()) {
+      Result r = it.next();
+      // Forward traversals read the edges of their sources, reverse ones
+      // those of their targets.
+      if (r.expanded.intersects(r.reverse ? changedTargets : changedSources)) {
+        it.remove();
+      }
+    }
+    changedSources.clear();
+    changedTargets.clear();
+  }
+
+  private Result compute(Query q, Visibility visibility) {
+    Edges[] edges = q.reverse ? users : dependencies;
+    List<Use> uses = new ArrayList<>();
+    boolean truncated = false;
+    // Projects whose edges were read
+    BitSet expanded = new BitSet();
+    int start = projects.find(q.project);
+    if (start < 0) {
+      return new Result(uses, false, expanded, q.reverse);
+    }
+    BitSet branches = null;
+    if (!q.branches.isEmpty()) {
+      branches = new BitSet();
+      for (String branch : q.branches) {
+        int b = labels.find(branch);
+        if (b >= 0) {
+          branches.set(b);
+        }
+      }
+    }
+    // Parent of each visited project on the breadth-first tree
+    int[] parent = new int[projects.size()];
+    Arrays.fill(parent, -1);
+    BitSet visited = new BitSet(projects.size());
+    visited.set(start);
+    int[] level = {start};
+    for (int depth = 1; level.length > 0; depth++) {
+      if (depth > q.maxDepth) {
+        // Only uses the query could have followed count as cut off
+        for (int node : level) {
+          expanded.set(node);
+          Edges e = node < edges.length ? edges[node] : null;
+          for (int i = 0; e != null && i < e.size && !truncated; i++) {
+            truncated = follows(e, i, branches, visibility);
+          }
+          if (truncated) {
+            break;
+          }
+        }
+        break;
+      }
+      int[] next = new int[0];
+      int count = 0;
+      for (int node : level) {
+        expanded.set(node);
+        Edges e = node < edges.length ? edges[node] : null;
+        if (e == null) {
+          continue;
+        }
+        int followed = 0;
+        for (int i = 0; i < e.size; i++) {
+          if (!follows(e, i, branches, visibility)) {
+            continue;
+          }
+          if (followed == q.maxFanOut) {
+            truncated = true;
+            break;
+          }
+          followed++;
+          int target = e.nodes[i];
+          boolean cycle = false;
+          if (visited.get(target)) {
+            cycle = isAncestor(parent, target, node);
+          } else {
+            visited.set(target);
+            parent[target] = node;
+            if (count == next.length) {
+              next = Arrays.copyOf(next, Math.max(8, count * 2));
+            }
+            next[count++] = target;
+          }
+          uses.add(toUse(e, i, depth, cycle));
+        }
+      }
+      level = Arrays.copyOf(next, count);
+    }
+    return new Result(uses, truncated, expanded, q.reverse);
+  }
+
+  private boolean follows(Edges e, int i, BitSet branches,
+      Visibility visibility) {
+    if (branches != null && !branches.get(e.branches[i])) {
+      return false;
+    }
+    return visibility == null
+        || visibility.isVisible(projects.get(e.nodes[i]));
+  }
+
+  /** @return true if {@code ancestor} is on the path to {@code node} */
+  private static boolean isAncestor(int[] parent, int ancestor, int node) {
+    for (int n = node; n >= 0; n = parent[n]) {
+      if (n == ancestor) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Use toUse(Edges e, int i, int depth, boolean cycle) {
+    return new Use(projects.get(e.nodes[i]),
+        e.paths[i] == NO_PATH ? null : labels.get(e.paths[i]),
+        labels.get(e.branches[i]), e.refs[i], depth, cycle);
+  }
+
+  /**
+   * Add or update an edge, recording its ends as changed.
+   *
+   * @return true if an edge was added or its ref changed
+   */
+  private boolean put(String project, String branch, String destination,
+      String ref) {
+    int[] source = getSource(project);
+    int target = projects.intern(destination);
+    int b = labels.intern(branch);
+    ensureCapacity(Math.max(source[0], target) + 1);
+    if (dependencies[source[0]] == null) {
+      dependencies[source[0]] = new Edges();
+    }
+    if (users[target] == null) {
+      users[target] = new Edges();
+    }
+    int change =
+        dependencies[source[0]].put(target, source[1], b, ref);
+    if (change == Edges.ADDED) {
+      edgeCount++;
+    }
+    users[target].put(source[0], source[1], b, ref);
+    if (change == Edges.UNCHANGED) {
+      return false;
+    }
+    changedSources.set(source[0]);
+    changedTargets.set(target);
+    return true;
+  }
+
+  /**
+   * Remove an edge, recording its ends as changed.
+   *
+   * @return true if the edge existed
+   */
+  private boolean remove(String project, String branch,
+      String destination) {
+    int[] source = getSource(project);
+    int target = projects.find(destination);
+    int b = labels.find(branch);
+    if (target < 0 || b < 0 || source[0] >= dependencies.length
+        || target >= users.length || dependencies[source[0]] == null
+        || users[target] == null) {
+      return false;
+    }
+    users[target].remove(source[0], source[1], b);
+    if (dependencies[source[0]].remove(target, source[1], b)) {
+      edgeCount--;
+      changedSources.set(source[0]);
+      changedTargets.set(target);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Split the project of a use into the project id and the manifest path.
+   * Uses found in a (top level) manifest are stored as
+   * {@code project:manifest.xml}.
+   */
+  private int[] getSource(String project) {
+    int colon = project.lastIndexOf(':');
+    if (colon > project.lastIndexOf('/')) {
+      return new int[] {projects.intern(project.substring(0, colon)),
+          labels.intern(project.substring(colon + 1))};
+    }
+    return new int[] {projects.intern(project), NO_PATH};
+  }
+
+  private void ensureCapacity(int size) {
+    if (dependencies.length < size) {
+      int length = Math.max(size, dependencies.length * 2);
+      dependencies = Arrays.copyOf(dependencies, length);
+      users = Arrays.copyOf(users, length);
+    }
+  }
+
+  /** Interns strings to dense int ids; ids are never reused. */
+  private static class Names {
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final List<String> names = new ArrayList<>();
+
+    int intern(String name) {
+      Integer id = ids.get(name);
+      if (id == null) {
+        id = names.size();
+        ids.put(name, id);
+        names.add(name);
+      }
+      return id;
+    }
+
+    int find(String name) {
+      Integer id = ids.get(name);
+      return id != null ? id : -1;
+    }
+
+    String get(int id) {
+      return names.get(id);
+    }
+
+    int size() {
+      return names.size();
+    }
+  }
+
+  /**
+   * The edges of one project, keyed by the project at the other end, the
+   * manifest path and the branch of the using project.
+   * <p>
+   * Short lists are searched linearly. Once a list grows past
+   * {@link #INDEX_THRESHOLD} edges, e.g. for a manifest project used on many
+   * branches, the position of each edge is indexed by its key.
+   */
+  private static class Edges {
+    static final int UNCHANGED = 0;
+    static final int UPDATED = 1;
+    static final int ADDED = 2;
+    private static final int INDEX_THRESHOLD = 16;
+
+    private int size;
+    private int[] nodes = new int[2];
+    private int[] paths = new int[2];
+    private int[] branches = new int[2];
+    private String[] refs = new String[2];
+    // Position of each edge; null while the list is short
+    private Map<EdgeKey, Integer> index;
+
+    /** @return whether the edge was added, updated or left unchanged */
+    int put(int node, int path, int branch, String ref) {
+      int i = find(node, path, branch);
+      if (i >= 0) {
+        if (Objects.equals(refs[i], ref)) {
+          return UNCHANGED;
+        }
+        refs[i] = ref;
+        return UPDATED;
+      }
+      if (size == nodes.length) {
+        int length = size * 2;
+        nodes = Arrays.copyOf(nodes, length);
+        paths = Arrays.copyOf(paths, length);
+        branches = Arrays.copyOf(branches, length);
+        refs = Arrays.copyOf(refs, length);
+      }
+      nodes[size] = node;
+      paths[size] = path;
+      branches[size] = branch;
+      refs[size] = ref;
+      if (index != null) {
+        index.put(new EdgeKey(node, path, branch), size);
+      }
+      size++;
+      if (index == null && size > INDEX_THRESHOLD) {
+        index = new HashMap<>();
+        for (int j = 0; j < size; j++) {
+          index.put(key(j), j);
+        }
+      }
+      return ADDED;
+    }
+
+    /** @return true if the edge existed */
+    boolean remove(int node, int path, int branch) {
+      int i = find(node, path, branch);
+      if (i < 0) {
+        return false;
+      }
+      if (index != null) {
+        index.remove(key(i));
+      }
+      size--;
+      nodes[i] = nodes[size];
+      paths[i] = paths[size];
+      branches[i] = branches[size];
+      refs[i] = refs[size];
+      refs[size] = null;
+      if (index != null && i < size) {
+        index.put(key(i), i);
+      }
+      return true;
+    }
+
+    private EdgeKey key(int i) {
+      return new EdgeKey(nodes[i], paths[i], branches[i]);
+    }
+
+    private int find(int node, int path, int branch) {
+      if (index != null) {
+        Integer i = index.get(new EdgeKey(node, path, branch));
+        return i != null ? i : -1;
+      }
+      for (int i = 0; i < size; i++) {
+        if (nodes[i] == node && paths[i] == path && branches[i] == branch) {
+          return i;
+        }
+      }
+      return -1;
+    }
+  }
+
+  private static class EdgeKey {
+    private final int node;
+    private final int path;
+    private final int branch;
+
+    EdgeKey(int node, int path, int branch) {
+      this.node = node;
+      this.path = path;
+      this.branch = branch;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof EdgeKey)) {
+        return false;
+      }
+      EdgeKey k = (EdgeKey) o;
+      return node == k.node && path == k.path && branch == k.branch;
+    }
+
+    @Override
+    public int hashCode() {
+      return (node * 31 + path) * 31 + branch;
+    }
+  }
+
+  /** Decides which projects a traversal may reach. */
+  public interface Visibility {
+    /**
+     * @param project canonical name of the project
+     * @return true if the project may be listed and walked through
+     */
+    boolean isVisible(String project);
+  }
+
+  /** Where a traversal starts and how far it may go. */
+  public static class Query {
+    private final String project;
+    private final boolean reverse;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxFanOut = Integer.MAX_VALUE;
+    private Set<String> branches = ImmutableSet.of();
+
+    /**
+     * @param project canonical name of the project to start from
+     * @param reverse true to follow uses to their users, false to follow
+     *        them to the used projects
+     */
+    public Query(String project, boolean reverse) {
+      this.project = project;
+      this.reverse = reverse;
+    }
+
+    /** Stop after this many uses from the start. */
+    public Query setMaxDepth(int maxDepth) {
+      this.maxDepth = maxDepth;
+      return this;
+    }
+
+    /** Follow at most this many uses of each project. */
+    public Query setMaxFanOut(int maxFanOut) {
+      this.maxFanOut = maxFanOut;
+      return this;
+    }
+
+    /** Only follow uses from these branches of the using projects. */
+    public Query setBranches(Collection<String> branches) {
+      this.branches = ImmutableSet.copyOf(branches);
+      return this;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Query)) {
+        return false;
+      }
+      Query q = (Query) o;
+      return project.equals(q.project) && reverse == q.reverse
+          && maxDepth == q.maxDepth && maxFanOut == q.maxFanOut
+          && branches.equals(q.branches);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, reverse, maxDepth, maxFanOut, branches);
+    }
+  }
+
+  /** A use found by a traversal; immutable, as results are shared. */
+  private static class Use {
+    private final String project;
+    private final String manifest;
+    private final String branch;
+    private final String ref;
+    private final int depth;
+    private final boolean cycle;
+
+    Use(String project, String manifest, String branch, String ref,
+        int depth, boolean cycle) {
+      this.project = project;
+      this.manifest = manifest;
+      this.branch = branch;
+      this.ref = ref;
+      this.depth = depth;
+      this.cycle = cycle;
+    }
+
+    UsageInfo toInfo() {
+      UsageInfo info = new UsageInfo();
+      info.project = project;
+      info.manifest = manifest;
+      info.branch = branch;
+      info.ref = ref;
+      info.depth = depth;
+      info.cycle = cycle ? true : null;
+      return info;
+    }
+  }
+
+  /** The uses found by a traversal. */
+  public static class Result {
+    private final List<Use> uses;
+    private final boolean truncated;
+    // Never modified once the result is built
+    private final BitSet expanded;
+    private final boolean reverse;
+
+    private Result(List<Use> uses, boolean truncated, BitSet expanded,
+        boolean reverse) {
+      this.uses = ImmutableList.copyOf(uses);
+      this.truncated = truncated;
+      this.expanded = expanded;
+      this.reverse = reverse;
+    }
+
+    /**
+     * @return the uses found, nearest first; a new copy on each call, as
+     *         results are shared between callers
+     */
+    public List<UsageInfo> getUses() {
+      List<UsageInfo> infos = new ArrayList<>(uses.size());
+      for (Use u : uses) {
+        infos.add(u.toInfo());
+      }
+      return infos;
+    }
+
+    /** @return true if every project reached is visible */
+    boolean isVisible(Visibility visibility) {
+      for (Use u : uses) {
+        if (!visibility.isVisible(u.project)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /** @return true if a depth or fan-out limit left uses unvisited */
+    public boolean isTruncated() {
+      return truncated;
+    }
+  }
+}
@@ -19,16 +19,19 @@ import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.inject.Inject;
 
 public class EventHandler implements GitReferenceUpdatedListener {
-  RefUpdateHandlerFactory refUpdateHandlerFactory;
+  RefUpdateQueue refUpdateQueue;
+  Metrics metrics;
 
   @Inject
-  public EventHandler(RefUpdateHandlerFactory refUpdateHandlerFactory) {
-    this.refUpdateHandlerFactory = refUpdateHandlerFactory;
+  public EventHandler(RefUpdateQueue refUpdateQueue, Metrics metrics) {
+    this.refUpdateQueue = refUpdateQueue;
+    this.metrics = metrics;
   }
 
   @Override
   public void onGitReferenceUpdated(Event event) {
+    metrics.events.increment();
     RefUpdate update = new RefUpdate(event);
-    refUpdateHandlerFactory.create(update).run();
+    refUpdateQueue.submit(update);
   }
 }
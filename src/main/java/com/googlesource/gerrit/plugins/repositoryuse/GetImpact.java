@@ -0,0 +1,55 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.inject.Inject;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lists every project reaching a project through any chain of submodules
+ * and manifests: {@code GET /projects/X/...~impact}.
+ * <p>
+ * Chains are only followed through projects visible to the caller, so a
+ * project reached only through a hidden one is not listed either.
+ */
+class GetImpact extends TraversalView {
+  @Inject
+  GetImpact(DependencyGraph graph, ProjectNames projectNames,
+      ProjectCache projectCache) {
+    super(graph, projectNames, projectCache);
+  }
+
+  @Override
+  public ImpactInfo apply(ProjectResource rsrc) throws BadRequestException {
+    DependencyGraph.Result result = traverse(rsrc, true, true);
+    List<UsageInfo> uses = result.getUses();
+    Set<String> projects = new LinkedHashSet<>();
+    for (UsageInfo use : uses) {
+      projects.add(use.project);
+    }
+    ImpactInfo info = new ImpactInfo();
+    info.projects = new ArrayList<>(projects);
+    info.uses = uses;
+    info.truncated = result.isTruncated() ? true : null;
+    return info;
+  }
+}
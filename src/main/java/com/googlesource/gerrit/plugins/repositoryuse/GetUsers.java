@@ -0,0 +1,37 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.inject.Inject;
+
+import java.util.List;
+
+/** Lists the projects using a project: {@code GET /projects/X/...~users}. */
+class GetUsers extends TraversalView {
+  @Inject
+  GetUsers(DependencyGraph graph, ProjectNames projectNames,
+      ProjectCache projectCache) {
+    super(graph, projectNames, projectCache);
+  }
+
+  @Override
+  public List<UsageInfo> apply(ProjectResource rsrc)
+      throws BadRequestException {
+    return traverse(rsrc, true, false).getUses();
+  }
+}
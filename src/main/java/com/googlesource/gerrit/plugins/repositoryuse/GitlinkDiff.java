@@ -0,0 +1,65 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import org.eclipse.jgit.lib.AnyObjectId;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.treewalk.EmptyTreeIterator;
+import org.eclipse.jgit.treewalk.TreeWalk;
+import org.eclipse.jgit.treewalk.filter.TreeFilter;
+
+import java.io.IOException;
+
+/**
+ * Detects whether any gitlink differs between two trees.
+ * <p>
+ * Only modes and object ids are compared. Subtrees with the same id on both
+ * sides are skipped without being read, no blob is ever opened and the walk
+ * stops at the first gitlink difference.
+ */
+final class GitlinkDiff {
+  private GitlinkDiff() {
+  }
+
+  /**
+   * @param reader the reader to load trees with
+   * @param oldTree the tree before the change, null if there was none
+   * @param newTree the tree after the change
+   * @return true if a gitlink was added, removed or changed
+   * @throws IOException if a tree could not be read
+   */
+  static boolean hasChanges(ObjectReader reader, AnyObjectId oldTree,
+      AnyObjectId newTree) throws IOException {
+    try (TreeWalk tw = new TreeWalk(reader)) {
+      if (oldTree != null) {
+        tw.addTree(oldTree);
+      } else {
+        tw.addTree(new EmptyTreeIterator());
+      }
+      tw.addTree(newTree);
+      tw.setRecursive(true);
+      // ANY_DIFF also prunes identical subtrees before descending into them
+      tw.setFilter(TreeFilter.ANY_DIFF);
+      while (tw.next()) {
+        if (tw.getFileMode(0) == FileMode.GITLINK
+            || tw.getFileMode(1) == FileMode.GITLINK) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+}
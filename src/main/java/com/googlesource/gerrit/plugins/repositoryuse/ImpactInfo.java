@@ -0,0 +1,30 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import java.util.List;
+
+/** The projects affected by a change to a project. */
+public class ImpactInfo {
+  /**
+   * Every visible project using the project directly or indirectly, nearest
+   * first.
+   */
+  public List<String> projects;
+  /** The uses connecting them. */
+  public List<UsageInfo> uses;
+  /** True if a depth or fan-out limit left users unvisited. */
+  public Boolean truncated;
+}
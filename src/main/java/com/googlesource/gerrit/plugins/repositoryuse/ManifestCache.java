@@ -0,0 +1,187 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.googlesource.gerrit.plugins.repositoryuse.ManifestParser.Manifest;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectLoader;
+import org.eclipse.jgit.lib.ObjectReader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed and resolved manifests.
+ * <p>
+ * Parsed manifests are keyed by the id of their blob. Resolved manifests are
+ * keyed by the ids of all blobs in their include graph, in the order they are
+ * applied, so a fragment shared by several manifests is parsed once and a
+ * manifest is only resolved again when one of the files it includes changes.
+ * Blob ids identify their content, so entries never go stale; the caches are
+ * shared between all repositories and only bounded in size.
+ */
+@Singleton
+public class ManifestCache {
+  /** Looks up included manifests by name. */
+  public interface IncludeResolver {
+    /**
+     * @param name the name of the included manifest
+     * @return the id of its blob, or null if there is none
+     * @throws IOException if the lookup failed
+     */
+    ObjectId resolve(String name) throws IOException;
+  }
+
+  /** A manifest together with all manifests it (transitively) includes. */
+  public static class Graph {
+    private final Manifest root;
+    private final List<ObjectId> ids;
+    private final Map<String, Manifest> includes;
+
+    private Graph(Manifest root, List<ObjectId> ids,
+        Map<String, Manifest> includes) {
+      this.root = root;
+      this.ids = ids;
+      this.includes = includes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Graph && ids.equals(((Graph) o).ids);
+    }
+
+    @Override
+    public int hashCode() {
+      return ids.hashCode();
+    }
+  }
+
+  private final Cache<ObjectId, Manifest> manifests;
+  private final Cache<List<ObjectId>, Map<String, String>> resolved;
+  private final Metrics metrics;
+
+  @Inject
+  public ManifestCache(Metrics metrics) {
+    this.metrics = metrics;
+    manifests = CacheBuilder.newBuilder()
+        .maximumSize(Math.max(0, Config.getManifestCacheSize()))
+        .build();
+    resolved = CacheBuilder.newBuilder()
+        .maximumSize(Math.max(0, Config.getManifestCacheSize()))
+        .build();
+  }
+
+  /**
+   * Collect the include graph of a manifest.
+   *
+   * @param reader the reader to load blobs with if they are not cached
+   * @param blob the id of the manifest blob
+   * @param resolver looks up included manifests
+   * @return the manifest and everything it includes
+   * @throws ManifestTooLargeException if the manifest or one of its includes
+   *         exceeds maxManifestSize
+   * @throws IOException if a blob could not be read
+   */
+  public Graph getGraph(ObjectReader reader, ObjectId blob,
+      IncludeResolver resolver) throws IOException {
+    ImmutableList.Builder<ObjectId> ids = ImmutableList.builder();
+    Map<String, Manifest> includes = new HashMap<>();
+    Manifest root = get(reader, blob);
+    ids.add(blob.copy());
+    collect(reader, root, resolver, ids, includes);
+    return new Graph(root, ids.build(), includes);
+  }
+
+  private void collect(ObjectReader reader, Manifest manifest,
+      IncludeResolver resolver, ImmutableList.Builder<ObjectId> ids,
+      Map<String, Manifest> includes) throws IOException {
+    for (String name : manifest.getIncludes()) {
+      if (includes.containsKey(name)) {
+        continue;
+      }
+      ObjectId id = resolver.resolve(name);
+      if (id == null) {
+        continue;
+      }
+      Manifest included = get(reader, id);
+      includes.put(name, included);
+      ids.add(id.copy());
+      collect(reader, included, resolver, ids, includes);
+    }
+  }
+
+  /**
+   * Get the projects used by a manifest and everything it includes.
+   *
+   * @param graph the include graph of the manifest
+   * @return the URI of each project mapped to its revision
+   */
+  public Map<String, String> getProjects(Graph graph) {
+    Map<String, String> projects = resolved.getIfPresent(graph.ids);
+    if (projects == null) {
+      projects = ImmutableMap.copyOf(
+          new ManifestParser().resolve(graph.root, graph.includes));
+      resolved.put(graph.ids, projects);
+    }
+    return projects;
+  }
+
+  private Manifest get(ObjectReader reader, ObjectId blob)
+      throws IOException {
+    Manifest manifest = manifests.getIfPresent(blob);
+    if (manifest == null) {
+      ObjectLoader ol = reader.open(blob, Constants.OBJ_BLOB);
+      // Streaming keeps the blob out of memory, but not the projects parsed
+      // from it; bound what a single manifest may cost an update thread.
+      long max = Config.getMaxManifestSize();
+      if (max > 0 && ol.getSize() > max) {
+        metrics.oversizedManifests.increment();
+        throw new ManifestTooLargeException(blob, ol.getSize());
+      }
+      // Stream the blob, so that large manifests don't have to be
+      // loaded into memory at once.
+      try (InputStream in = ol.openStream()) {
+        manifest = ManifestParser.parse(in);
+      }
+      if (!manifest.isValid()) {
+        metrics.parseFailures.increment();
+      }
+      manifests.put(blob.copy(), manifest);
+    }
+    return manifest;
+  }
+
+  /** Thrown for manifests larger than {@code maxManifestSize}. */
+  public static class ManifestTooLargeException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    ManifestTooLargeException(ObjectId blob, long size) {
+      super(String.format("Manifest %s is too large (%d bytes)", blob.name(),
+          size));
+    }
+  }
+}
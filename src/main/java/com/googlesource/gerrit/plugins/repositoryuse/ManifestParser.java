@@ -14,21 +14,38 @@
 
 package com.googlesource.gerrit.plugins.repositoryuse;
 
-import org.apache.commons.digester3.Digester;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.xml.sax.SAXException;
 
 import java.io.ByteArrayInputStream;
-import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
 import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 public class ManifestParser {
   private static final Logger log =
       LoggerFactory.getLogger(ManifestParser.class);
+  // StAX does not promise that factories are thread-safe; keep one per thread
+  private static final ThreadLocal<XMLInputFactory> factory =
+      new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+          return createFactory();
+        }
+      };
+
   private HashMap<String, String> remotes;
   private Project defaultProject;
   private ArrayList<Project> projects;
@@ -39,43 +56,138 @@ public class ManifestParser {
     projects = new ArrayList<>();
   }
 
+  private static XMLInputFactory createFactory() {
+    XMLInputFactory f = XMLInputFactory.newInstance();
+    // Manifests never need DTDs; don't resolve anything outside the blob.
+    f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    f.setProperty(XMLInputFactory.IS_COALESCING, false);
+    return f;
+  }
+
   public Map<String, String> parseManifest(byte[] contents) {
-    Digester digester = new Digester();
-    digester.push(this);
-
-    // Add all remote handlers
-    digester.addCallMethod("manifest/remote", "addRemote", 2);
-    digester.addCallParam("manifest/remote", 0, "name");
-    digester.addCallParam("manifest/remote", 1, "fetch");
-
-    // Add all default handlers. This handles both repo format
-    // attributes (remote, revision) and non-standard attributes
-    // (branch, tag, commit-id).
-    digester.addCallMethod("manifest/default", "addDefault", 5);
-    digester.addCallParam("manifest/default", 0, "remote");
-    digester.addCallParam("manifest/default", 1, "revision");
-    digester.addCallParam("manifest/default", 2, "branch");
-    digester.addCallParam("manifest/default", 3, "tag");
-    digester.addCallParam("manifest/default", 4, "commit-id");
-
-    // Add all project handlers. This handles both repo format
-    // attributes (remote, revision) and non-standard attributes
-    // (branch, tag, commit-id).
-    digester.addCallMethod("manifest/project", "addProject", 6);
-    digester.addCallParam("manifest/project", 0, "remote");
-    digester.addCallParam("manifest/project", 1, "name");
-    digester.addCallParam("manifest/project", 2, "revision");
-    digester.addCallParam("manifest/project", 3, "branch");
-    digester.addCallParam("manifest/project", 4, "tag");
-    digester.addCallParam("manifest/project", 5, "commit-id");
-
-
-    InputStream input = new ByteArrayInputStream(contents);
+    return parseManifest(new ByteArrayInputStream(contents));
+  }
+
+  /**
+   * Parse and resolve a single manifest from a stream.
+   * <p>
+   * Includes are not followed; use {@link #parse(InputStream)} and
+   * {@link #resolve(Manifest, Map)} for manifests split across files.
+   *
+   * @param input the manifest; it is read sequentially and not closed
+   * @return the URI of each project mapped to its revision
+   */
+  public Map<String, String> parseManifest(InputStream input) {
+    return resolve(parse(input), Collections.<String, Manifest> emptyMap());
+  }
+
+  /**
+   * Parse a manifest from a stream, without resolving it.
+   * <p>
+   * Only direct children of the {@code manifest} root element are
+   * considered. The result does not depend on any other file, so it may be
+   * cached by the content of the manifest.
+   *
+   * @param input the manifest; it is read sequentially and not closed
+   * @return the parsed manifest
+   */
+  public static Manifest parse(InputStream input) {
+    List<Element> elements = new ArrayList<>();
+    boolean valid = true;
+    XMLStreamReader xml = null;
     try {
-      digester.parse(input);
-    } catch (IOException | SAXException e) {
+      xml = factory.get().createXMLStreamReader(input);
+      int depth = 0;
+      boolean isManifest = false;
+      while (xml.hasNext()) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          depth++;
+          String element = xml.getLocalName();
+          if (depth == 1) {
+            isManifest = element.equals("manifest");
+          } else if (depth == 2 && isManifest) {
+            Kind kind = Kind.forElement(element);
+            if (kind != null) {
+              elements.add(new Element(kind, xml));
+            }
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          depth--;
+        }
+      }
+    } catch (XMLStreamException e) {
       log.warn("Unable to parse manifest", e);
+      valid = false;
+    } finally {
+      if (xml != null) {
+        try {
+          xml.close();
+        } catch (XMLStreamException e) {
+          // Ignore; the parse result is not affected
+        }
+      }
+    }
+    return new Manifest(elements, valid);
+  }
+
+  /**
+   * Resolve a manifest into the projects it uses.
+   * <p>
+   * Included manifests are applied where they are included. Each manifest is
+   * applied at most once, so include cycles are broken. Remotes and the
+   * default are shared by all included manifests; remove-project and
+   * extend-project apply to the projects listed before them.
+   *
+   * @param manifest the manifest to resolve
+   * @param includes the manifests that may be included, by name
+   * @return the URI of each project mapped to its revision
+   */
+  public Map<String, String> resolve(Manifest manifest,
+      Map<String, Manifest> includes) {
+    apply(manifest, includes, new HashSet<Manifest>());
+    return resolveProjects();
+  }
+
+  private void apply(Manifest manifest, Map<String, Manifest> includes,
+      Set<Manifest> applied) {
+    applied.add(manifest);
+    for (Element e : manifest.elements) {
+      switch (e.kind) {
+        case REMOTE:
+          addRemote(e.get("name"), e.get("fetch"));
+          break;
+        case DEFAULT:
+          addDefault(e.get("remote"), e.get("revision"), e.get("branch"),
+              e.get("tag"), e.get("commit-id"));
+          break;
+        case PROJECT:
+          addProject(e.get("remote"), e.get("name"), e.get("revision"),
+              e.get("branch"), e.get("tag"), e.get("commit-id"));
+          break;
+        case INCLUDE:
+          Manifest included = includes.get(e.get("name"));
+          if (included == null) {
+            log.warn("Included manifest not found: " + e.get("name"));
+          } else if (applied.contains(included)) {
+            log.warn("Manifest included more than once: " + e.get("name"));
+          } else {
+            apply(included, includes, applied);
+          }
+          break;
+        case REMOVE_PROJECT:
+          removeProject(e.get("name"));
+          break;
+        case EXTEND_PROJECT:
+          extendProject(e.get("name"), e.get("remote"), e.get("revision"),
+              e.get("branch"), e.get("tag"), e.get("commit-id"));
+          break;
+      }
     }
+  }
+
+  private Map<String, String> resolveProjects() {
     HashMap<String, String> resolvedProjects = new HashMap<>(projects.size());
     for (Project p : projects) {
       String uri = null;
@@ -112,20 +224,20 @@ public class ManifestParser {
     return resolvedProjects;
   }
 
-  public void addRemote(String name, String fetch) {
+  private void addRemote(String name, String fetch) {
     if (fetch != null && fetch.endsWith("/")) {
       fetch = fetch.substring(0, fetch.length()-1);
     }
     remotes.put(name, fetch);
   }
 
-  public void addDefault(String remote, String revision, String branch,
+  private void addDefault(String remote, String revision, String branch,
       String tag, String commitId) {
     defaultProject =
         new Project(remote, null, getRevision(revision, branch, tag, commitId));
   }
 
-  public void addProject(String remote, String name, String revision,
+  private void addProject(String remote, String name, String revision,
       String branch, String tag, String commitId) {
     if (name != null) {
       projects.add(new Project(remote, name,
@@ -135,6 +247,38 @@ public class ManifestParser {
     }
   }
 
+  private void removeProject(String name) {
+    if (name == null) {
+      log.warn("Project name not specified in remove-project");
+      return;
+    }
+    name = new Project(null, name, null).getName();
+    Iterator<Project> it = projects.iterator();
+    while (it.hasNext()) {
+      if (name.equals(it.next().getName())) {
+        it.remove();
+      }
+    }
+  }
+
+  private void extendProject(String name, String remote, String revision,
+      String branch, String tag, String commitId) {
+    if (name == null) {
+      log.warn("Project name not specified in extend-project");
+      return;
+    }
+    name = new Project(null, name, null).getName();
+    revision = getRevision(revision, branch, tag, commitId);
+    ListIterator<Project> it = projects.listIterator();
+    while (it.hasNext()) {
+      Project p = it.next();
+      if (name.equals(p.getName())) {
+        it.set(new Project(remote != null ? remote : p.getRemote(),
+            p.getName(), revision != null ? revision : p.getRevision()));
+      }
+    }
+  }
+
   private String getRevision(String revision, String branch, String tag,
       String commitId) {
     if (revision != null) {
@@ -182,4 +326,77 @@ public class ManifestParser {
     }
   }
 
+  /** A parsed, but not yet resolved, manifest. Instances are immutable. */
+  public static class Manifest {
+    private final List<Element> elements;
+    private final List<String> includes;
+    private final boolean valid;
+
+    private Manifest(List<Element> elements, boolean valid) {
+      this.elements = Collections.unmodifiableList(elements);
+      this.valid = valid;
+      List<String> names = new ArrayList<>();
+      for (Element e : elements) {
+        if (e.kind == Kind.INCLUDE && e.get("name") != null) {
+          names.add(e.get("name"));
+        }
+      }
+      this.includes = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * @return false if the manifest is not well-formed; the elements before
+     *         the error are still used
+     */
+    public boolean isValid() {
+      return valid;
+    }
+
+    /** @return the names of the included manifests, in order */
+    public List<String> getIncludes() {
+      return includes;
+    }
+  }
+
+  private enum Kind {
+    REMOTE("remote"),
+    DEFAULT("default"),
+    PROJECT("project"),
+    INCLUDE("include"),
+    REMOVE_PROJECT("remove-project"),
+    EXTEND_PROJECT("extend-project");
+
+    private final String element;
+
+    Kind(String element) {
+      this.element = element;
+    }
+
+    static Kind forElement(String element) {
+      for (Kind k : values()) {
+        if (k.element.equals(element)) {
+          return k;
+        }
+      }
+      return null;
+    }
+  }
+
+  private static class Element {
+    private final Kind kind;
+    private final Map<String, String> attributes;
+
+    Element(Kind kind, XMLStreamReader xml) {
+      this.kind = kind;
+      this.attributes = new HashMap<>(xml.getAttributeCount());
+      for (int i = 0; i < xml.getAttributeCount(); i++) {
+        attributes.put(xml.getAttributeLocalName(i),
+            xml.getAttributeValue(i));
+      }
+    }
+
+    String get(String attribute) {
+      return attributes.get(attribute);
+    }
+  }
 }
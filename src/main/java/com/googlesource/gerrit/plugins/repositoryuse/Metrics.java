@@ -0,0 +1,169 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.common.base.Supplier;
+import com.google.gerrit.metrics.Counter0;
+import com.google.gerrit.metrics.Description;
+import com.google.gerrit.metrics.Description.Units;
+import com.google.gerrit.metrics.Histogram0;
+import com.google.gerrit.metrics.MetricMaker;
+import com.google.gerrit.metrics.Timer0;
+import com.google.inject.Inject;
+import com.google.inject.Provider;
+import com.google.inject.Singleton;
+
+/**
+ * Metrics of the ref update path, scans and the database, exported
+ * through Gerrit's metric backends.
+ */
+@Singleton
+public class Metrics {
+  final Timer0 repoOpenLatency;
+  final Timer0 gitlinkDiffLatency;
+  final Timer0 gitmodulesParseLatency;
+  final Timer0 manifestParseLatency;
+  final Timer0 databaseReadLatency;
+  final Timer0 databaseWriteLatency;
+  final Counter0 events;
+  final Counter0 skippedRefs;
+  final Counter0 oversizedManifests;
+  final Counter0 parseFailures;
+  final Histogram0 usagesPerRef;
+
+  @Inject
+  public Metrics(MetricMaker metrics, final Provider<SQLDriver> sql,
+      final Provider<RefUpdateQueue> refUpdateQueue,
+      final Provider<ScanProgress> scanProgress) {
+    repoOpenLatency = metrics.newTimer("update/repo_open_latency",
+        latency("Time taken to open a repository"));
+    gitlinkDiffLatency = metrics.newTimer("update/gitlink_diff_latency",
+        latency("Time taken to look for changed gitlinks"));
+    gitmodulesParseLatency = metrics.newTimer(
+        "update/gitmodules_parse_latency",
+        latency("Time taken to find the submodules of a commit"));
+    manifestParseLatency = metrics.newTimer("update/manifest_parse_latency",
+        latency("Time taken to find the projects of a manifest"));
+    databaseReadLatency = metrics.newTimer("database/read_latency",
+        latency("Time taken by a database query"));
+    databaseWriteLatency = metrics.newTimer("database/write_latency",
+        latency("Time taken by a database write, including waiting for"
+            + " databaseWriteLimit"));
+
+    events = metrics.newCounter("update/events",
+        new Description("Ref updates received").setRate().setUnit("events"));
+    skippedRefs = metrics.newCounter("update/skipped_refs",
+        new Description("Refs not analysed because they are neither"
+            + " branches nor tags, or did not move since the last scan")
+                .setRate().setUnit("refs"));
+    oversizedManifests = metrics.newCounter("manifest/oversized",
+        new Description("Manifests skipped for exceeding maxManifestSize")
+            .setRate().setUnit("manifests"));
+    parseFailures = metrics.newCounter("update/parse_failures",
+        new Description("Manifests and .gitmodules files that could not be"
+            + " parsed").setRate().setUnit("files"));
+
+    usagesPerRef = metrics.newHistogram("update/usages_per_ref",
+        new Description("Projects used by a branch, per submodule"
+            + " configuration or manifest").setCumulative().setUnit("uses"));
+
+    metrics.newCallbackMetric("database/connections_active", Integer.class,
+        new Description("Database connections in use").setGauge()
+            .setUnit("connections"),
+        new Supplier<Integer>() {
+          @Override
+          public Integer get() {
+            return sql.get().getActiveConnections();
+          }
+        });
+    metrics.newCallbackMetric("database/connections_idle", Integer.class,
+        new Description("Idle database connections in the pool").setGauge()
+            .setUnit("connections"),
+        new Supplier<Integer>() {
+          @Override
+          public Integer get() {
+            return sql.get().getIdleConnections();
+          }
+        });
+    metrics.newCallbackMetric("database/connection_wait", Long.class,
+        new Description("Total time spent waiting for a database connection")
+            .setCumulative().setUnit(Units.MILLISECONDS),
+        new Supplier<Long>() {
+          @Override
+          public Long get() {
+            return sql.get().getConnectionWaitMillis();
+          }
+        });
+    metrics.newCallbackMetric("database/connection_failures", Long.class,
+        new Description("Times no database connection could be had")
+            .setCumulative().setUnit("failures"),
+        new Supplier<Long>() {
+          @Override
+          public Long get() {
+            return sql.get().getConnectionFailures();
+          }
+        });
+    metrics.newCallbackMetric("update/queue_pending", Integer.class,
+        new Description("Ref updates waiting to be processed").setGauge()
+            .setUnit("updates"),
+        new Supplier<Integer>() {
+          @Override
+          public Integer get() {
+            return refUpdateQueue.get().getPendingCount();
+          }
+        });
+    metrics.newCallbackMetric("update/queue_received", Long.class,
+        new Description("Ref updates submitted to the update queue")
+            .setCumulative().setUnit("updates"),
+        new Supplier<Long>() {
+          @Override
+          public Long get() {
+            return refUpdateQueue.get().getReceivedCount();
+          }
+        });
+    metrics.newCallbackMetric("update/queue_merged", Long.class,
+        new Description("Ref updates merged into an already pending update"
+            + " of the same ref").setCumulative().setUnit("updates"),
+        new Supplier<Long>() {
+          @Override
+          public Long get() {
+            return refUpdateQueue.get().getMergedCount();
+          }
+        });
+    metrics.newCallbackMetric("scan/projects_queued", Long.class,
+        new Description("Projects waiting to be scanned").setGauge()
+            .setUnit("projects"),
+        new Supplier<Long>() {
+          @Override
+          public Long get() {
+            return scanProgress.get().snapshot().getQueued();
+          }
+        });
+    metrics.newCallbackMetric("scan/projects_running", Long.class,
+        new Description("Projects being scanned").setGauge()
+            .setUnit("projects"),
+        new Supplier<Long>() {
+          @Override
+          public Long get() {
+            return scanProgress.get().snapshot().getRunning();
+          }
+        });
+  }
+
+  private static Description latency(String description) {
+    return new Description(description).setCumulative()
+        .setUnit(Units.MILLISECONDS);
+  }
+}
@@ -14,9 +14,12 @@
 
 package com.googlesource.gerrit.plugins.repositoryuse;
 
+import static com.google.gerrit.server.project.ProjectResource.PROJECT_KIND;
+
 import com.google.gerrit.extensions.events.GitReferenceUpdatedListener;
 import com.google.gerrit.extensions.events.LifecycleListener;
 import com.google.gerrit.extensions.registration.DynamicSet;
+import com.google.gerrit.extensions.restapi.RestApiModule;
 import com.google.inject.AbstractModule;
 import com.google.inject.Provides;
 import com.google.inject.Scopes;
@@ -33,8 +36,10 @@ public class Module extends AbstractModule {
     DynamicSet.bind(binder(), GitReferenceUpdatedListener.class)
         .to(EventHandler.class);
     requestStaticInjection(Config.class);
+    requestStaticInjection(Schema.class);
     requestStaticInjection(Ref.Table.class);
     requestStaticInjection(Usage.Table.class);
+    requestStaticInjection(ScanJob.Table.class);
     install(new FactoryModuleBuilder()
         .implement(RefUpdateHandler.class, RefUpdateHandlerImpl.class)
         .build(RefUpdateHandlerFactory.class));
@@ -44,14 +49,28 @@ public class Module extends AbstractModule {
     bind(ScanningQueue.class).in(Scopes.SINGLETON);
     bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create())
         .to(ScanningQueue.class);
+    bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create())
+        .to(ScanJobs.class);
+    bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create())
+        .to(RefUpdateQueue.class);
     bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create())
         .to(SQLDriver.class);
+    bind(LifecycleListener.class).annotatedWith(UniqueAnnotations.create())
+        .to(DependencyGraph.class);
+    install(new RestApiModule() {
+      @Override
+      protected void configure() {
+        get(PROJECT_KIND, "users").to(GetUsers.class);
+        get(PROJECT_KIND, "dependencies").to(GetDependencies.class);
+        get(PROJECT_KIND, "impact").to(GetImpact.class);
+      }
+    });
   }
 
   @Provides
   @Singleton
-  SQLDriver provideSqlDriver() {
-    return new SQLDriver();
+  SQLDriver provideSqlDriver(Metrics metrics) {
+    return new SQLDriver(metrics);
   }
 
   @Provides
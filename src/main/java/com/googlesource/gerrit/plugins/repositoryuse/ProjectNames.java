@@ -0,0 +1,215 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+import com.google.gerrit.server.config.CanonicalWebUrl;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Objects;
+
+/**
+ * Turns project names and submodule or manifest URLs into the canonical
+ * {@code host/path} names stored in the database.
+ * <p>
+ * The same handful of remotes and projects come up for every manifest and
+ * every push, so results are cached (up to {@code projectNameCacheSize}
+ * entries of each kind) and interned, letting all uses of a project share
+ * one string.
+ */
+@Singleton
+public class ProjectNames {
+  private static final Logger log = LoggerFactory.getLogger(ProjectNames.class);
+
+  private final String serverName;
+  private final Interner<String> names = Interners.newWeakInterner();
+  private final Cache<String, String> canonical;
+  private final Cache<Key, String> normalized;
+
+  @Inject
+  public ProjectNames(@CanonicalWebUrl String canonicalWebUrl) {
+    this(canonicalWebUrl, Config.getProjectNameCacheSize());
+  }
+
+  @VisibleForTesting
+  ProjectNames(String canonicalWebUrl, int cacheSize) {
+    if (canonicalWebUrl != null) {
+      try {
+        URL url = new URL(canonicalWebUrl);
+        canonicalWebUrl = url.getHost();
+      } catch (MalformedURLException e) {
+        log.warn("Could not parse canonicalWebUrl", e);
+      }
+    }
+    this.serverName = canonicalWebUrl;
+    int size = Math.max(0, cacheSize);
+    this.canonical = CacheBuilder.newBuilder().maximumSize(size).build();
+    this.normalized = CacheBuilder.newBuilder().maximumSize(size).build();
+  }
+
+  public String getCanonicalProject(String project) {
+    String result = canonical.getIfPresent(project);
+    if (result == null) {
+      result = names.intern(computeCanonicalProject(project));
+      canonical.put(project, result);
+    }
+    return result;
+  }
+
+  /**
+   * @param canonicalProject canonical name of a project
+   * @return the name of the project on this server, or null if it is hosted
+   *         elsewhere
+   */
+  public String getLocalProject(String canonicalProject) {
+    String prefix = getCanonicalProject("");
+    if (canonicalProject.startsWith(prefix)) {
+      return canonicalProject.substring(prefix.length());
+    }
+    return null;
+  }
+
+  public String normalizePath(String project, String destination,
+      boolean isManifest) {
+    Key key = new Key(project, destination, isManifest);
+    String result = normalized.getIfPresent(key);
+    if (result == null) {
+      result = names.intern(computePath(project, destination, isManifest));
+      normalized.put(key, result);
+    }
+    return result;
+  }
+
+  private String computeCanonicalProject(String project) {
+    String canonicalProject =
+        String.format("https://%s/%s", serverName, project);
+    try {
+      URL url = new URL(canonicalProject);
+      canonicalProject = url.getHost() + url.getPath();
+    } catch (MalformedURLException e) {
+      log.warn("Could not parse project as URL: " + canonicalProject);
+    }
+    return canonicalProject;
+  }
+
+  private String computePath(String project, String destination,
+      boolean isManifest) {
+    String originalProject =
+        isManifest ? project.substring(0, project.lastIndexOf(":")) : project;
+
+    // Strip trailing slashes and .git suffix
+    if (destination.endsWith("/")) {
+      destination = destination.substring(0, destination.length() - 1);
+    }
+
+    if (destination.endsWith(".git")) {
+      destination = destination.substring(0, destination.length() - 4);
+    }
+
+    // Handle relative and absolute paths on the same server
+    if (destination.startsWith("//")) {
+      // UNC path; let this pass through unaltered.
+      // This should be rather uncommon, though.
+      return destination;
+    }
+    if (destination.startsWith("/")) {
+      if (serverName != null) {
+        destination = serverName + destination;
+      } else {
+        log.warn("Could not parse absolute path; canonicalWebUrl not set");
+      }
+    } else if (destination.startsWith(".")) {
+      if (serverName != null) {
+        Path path = Paths.get(String.format("/%s/%s", project, destination));
+        destination = serverName + path.normalize().toString();
+      } else {
+        log.warn("Could not parse relative path; canonicalWebUrl not set");
+      }
+    } else if (schemeEnd(destination) < 0) {
+      if (serverName != null) {
+        destination = serverName + "/" + originalProject + "/" + destination;
+      } else {
+        log.warn("Could not parse relative path; canonicalWebURl not set");
+      }
+    }
+
+    try {
+      // Replace the protocol with a known scheme, to avoid angering URL
+      int schemeEnd = schemeEnd(destination);
+      if (schemeEnd >= 0) {
+        destination = destination.substring(schemeEnd);
+      }
+      URL url = new URL("https://" + destination);
+      destination = url.getHost();
+      Path path = Paths.get(url.getPath()).normalize();
+      destination += path.toString();
+    } catch (MalformedURLException e) {
+      log.warn("Could not parse destination as URL: " + destination);
+    }
+    return destination;
+  }
+
+  /**
+   * @return the index following the {@code scheme://} prefix of a URL, or -1
+   *         if it has none
+   */
+  @VisibleForTesting
+  static int schemeEnd(String url) {
+    int colon = url.indexOf(':');
+    if (colon > 0 && url.startsWith("//", colon + 1)) {
+      return colon + 3;
+    }
+    return -1;
+  }
+
+  private static class Key {
+    private final String project;
+    private final String destination;
+    private final boolean isManifest;
+
+    Key(String project, String destination, boolean isManifest) {
+      this.project = project;
+      this.destination = destination;
+      this.isManifest = isManifest;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Key)) {
+        return false;
+      }
+      Key k = (Key) o;
+      return project.equals(k.project) && destination.equals(k.destination)
+          && isManifest == k.isManifest;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(project, destination, isManifest);
+    }
+  }
+}
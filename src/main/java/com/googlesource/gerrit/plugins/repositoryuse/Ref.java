@@ -19,12 +19,12 @@ import com.google.inject.Inject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
 public class Ref {
   private static final Logger log = LoggerFactory.getLogger(Ref.class);
@@ -81,6 +81,20 @@ public class Ref {
     table.delete(this);
   }
 
+  /**
+   * Store a set of refs in a single transaction.
+   *
+   * @param refs the refs to insert or update
+   */
+  public static void saveAll(Collection<Ref> refs) {
+    Date now = new Date();
+    for (Ref r : refs) {
+      r.lastUpdated = now;
+    }
+    log.debug(String.format("Saving Ref batch: %d refs", refs.size()));
+    table.insertOrUpdate(refs);
+  }
+
   public static List<Ref> fetchByProject(String project) {
     return table.fetchByProject(project);
   }
@@ -107,6 +121,14 @@ public class Ref {
     private static final String REF = "ref";
     private static final String COMMIT = "commit";
     private static final String DATE = "last_update";
+    private static final SQLDriver.RowMapper<Ref> ROW_MAPPER =
+        new SQLDriver.RowMapper<Ref>() {
+          @Override
+          public Ref map(ResultSet r) throws SQLException {
+            return new Ref(r.getString(PROJECT), r.getString(REF),
+                r.getString(COMMIT), r.getTimestamp(DATE));
+          }
+        };
     @Inject
     private static SQLDriver sql;
 
@@ -131,28 +153,34 @@ public class Ref {
     }
 
     public void insertOrUpdate(Ref r) {
-      if (fetchByRef(r.getProject(), r.getRef()).isEmpty()) {
-        String query = "INSERT INTO " + TABLE_NAME + "(" + PROJECT + ", " + REF
-            + ", " + COMMIT + ", " + DATE + ") VALUES (?, ?, ?, "
-            + sql.getDateFormat() + ")";
-        try {
-          sql.execute(query, r.getProject(), r.getRef(), r.getCommit(),
-              sql.getDateAsString(r.getLastUpdated()));
-        } catch (SQLException e) {
-          log.error("Unable to insert reference", e);
-        }
-      } else {
-        String query = "UPDATE " + TABLE_NAME + " SET " + COMMIT + "=?, " + DATE
-            + "=" + sql.getDateFormat() + " WHERE " + PROJECT + "=? AND " + REF
-            + "=?";
-        try {
-          sql.execute(query, r.getCommit(),
-              sql.getDateAsString(r.getLastUpdated()), r.getProject(),
-              r.getRef());
-        } catch (SQLException e) {
-          log.error("Unable to update reference", e);
-        }
+      try {
+        sql.execute(getUpsertQuery(), getUpsertParameters(r));
+      } catch (SQLException e) {
+        log.error("Unable to save reference", e);
+      }
+    }
+
+    public void insertOrUpdate(Collection<Ref> refs) {
+      SQLDriver.Batch batch = new SQLDriver.Batch();
+      for (Ref r : refs) {
+        batch.add(getUpsertQuery(), getUpsertParameters(r));
       }
+      try {
+        sql.execute(batch);
+      } catch (SQLException e) {
+        log.error("Unable to save references", e);
+      }
+    }
+
+    private String getUpsertQuery() {
+      return sql.getUpsertQuery(TABLE_NAME, new String[] {PROJECT, REF},
+          new String[] {PROJECT, REF, COMMIT, DATE},
+          new String[] {"?", "?", "?", "?"});
+    }
+
+    private Object[] getUpsertParameters(Ref r) {
+      return new Object[] {r.getProject(), r.getRef(), r.getCommit(),
+          r.getLastUpdated()};
     }
 
     public void delete(Ref r) {
@@ -170,8 +198,7 @@ public class Ref {
       String query = "SELECT " + PROJECT + ", " + REF + ", " + COMMIT + ", "
           + DATE + " FROM " + TABLE_NAME + " WHERE " + PROJECT + "=?";
       try {
-        return loadRefs(sql.fetchRows(query, project));
-
+        return sql.fetch(query, ROW_MAPPER, project);
       } catch (SQLException e) {
         log.error("Unable to execute query", e);
       }
@@ -183,21 +210,12 @@ public class Ref {
           + DATE + " FROM " + TABLE_NAME + " WHERE " + PROJECT + "=? AND " + REF
           + "=?";
       try {
-        return loadRefs(sql.fetchRows(query, project, ref));
+        return sql.fetch(query, ROW_MAPPER, project, ref);
       } catch (SQLException e) {
         log.error("Unable to execute query", e);
       }
       return Collections.emptyList();
     }
 
-    private List<Ref> loadRefs(List<Map<String, String>> rows) {
-      List<Ref> result = new ArrayList<>();
-      for (Map<String, String> row : rows) {
-        Ref tmp = new Ref(row.get(PROJECT), row.get(REF), row.get(COMMIT),
-            sql.getStringAsDate(row.get(DATE)));
-        result.add(tmp);
-      }
-      return result;
-    }
   }
 }
@@ -70,4 +70,16 @@ public class RefUpdate {
   public boolean isDelete() {
     return isDelete;
   }
+
+  /**
+   * Combine this update with a later update of the same ref.
+   *
+   * @param later the update that happened after this one
+   * @return an update spanning from this update's old id to the later
+   *         update's new id
+   */
+  public RefUpdate merge(RefUpdate later) {
+    return new RefUpdate(projectName, refName, oldObjectId,
+        later.getNewObjectId());
+  }
 }
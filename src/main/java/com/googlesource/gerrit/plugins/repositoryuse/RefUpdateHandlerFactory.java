@@ -16,4 +16,6 @@ package com.googlesource.gerrit.plugins.repositoryuse;
 
 public interface RefUpdateHandlerFactory {
   RefUpdateHandler create(RefUpdate update);
+
+  RefUpdateHandler create(RefUpdate update, ScanResults scanResults);
 }
@@ -14,40 +14,33 @@
 
 package com.googlesource.gerrit.plugins.repositoryuse;
 
+import com.google.gerrit.metrics.Timer0;
 import com.google.gerrit.reviewdb.client.Project;
-import com.google.gerrit.server.config.CanonicalWebUrl;
 import com.google.gerrit.server.git.GitRepositoryManager;
-import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
+import com.google.inject.assistedinject.AssistedInject;
 
-import org.eclipse.jgit.diff.DiffEntry;
-import org.eclipse.jgit.diff.DiffFormatter;
-import org.eclipse.jgit.diff.RawTextComparator;
 import org.eclipse.jgit.errors.ConfigInvalidException;
-import org.eclipse.jgit.errors.RepositoryNotFoundException;
+import org.eclipse.jgit.errors.MissingObjectException;
 import org.eclipse.jgit.lib.ConfigConstants;
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
 import org.eclipse.jgit.lib.ObjectLoader;
 import org.eclipse.jgit.lib.ObjectReader;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.revwalk.RevCommit;
 import org.eclipse.jgit.revwalk.RevTree;
 import org.eclipse.jgit.revwalk.RevWalk;
-import org.eclipse.jgit.submodule.SubmoduleWalk;
 import org.eclipse.jgit.treewalk.TreeWalk;
-import org.eclipse.jgit.treewalk.filter.PathFilter;
+import org.eclipse.jgit.treewalk.filter.PathFilterGroup;
 import org.eclipse.jgit.util.RawParseUtils;
-import org.eclipse.jgit.util.io.DisabledOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -57,231 +50,320 @@ public class RefUpdateHandlerImpl implements RefUpdateHandler {
 
   private RefUpdate event;
   private final GitRepositoryManager repoManager;
-  private final String serverName;
+  private final ManifestCache manifestCache;
+  private final ProjectNames projectNames;
+  private final ScanResults scanResults;
+  private final Metrics metrics;
+  // Set when storing the uses of the ref failed
+  private boolean failed;
 
-  @Inject
+  @AssistedInject
   public RefUpdateHandlerImpl(@Assisted RefUpdate event,
-      GitRepositoryManager repoManager,
-      @CanonicalWebUrl String canonicalWebUrl) {
+      GitRepositoryManager repoManager, ManifestCache manifestCache,
+      ProjectNames projectNames, Metrics metrics) {
+    this(event, null, repoManager, manifestCache, projectNames, metrics);
+  }
+
+  @AssistedInject
+  public RefUpdateHandlerImpl(@Assisted RefUpdate event,
+      @Assisted ScanResults scanResults, GitRepositoryManager repoManager,
+      ManifestCache manifestCache, ProjectNames projectNames,
+      Metrics metrics) {
+    this.metrics = metrics;
     this.event = event;
+    this.scanResults = scanResults;
     this.repoManager = repoManager;
-    if (canonicalWebUrl != null) {
-      try {
-        URL url = new URL(canonicalWebUrl);
-        canonicalWebUrl = url.getHost();
-      } catch (MalformedURLException e) {
-        log.warn("Could not parse canonicalWebUrl", e);
-      }
-    }
-    this.serverName = canonicalWebUrl;
+    this.manifestCache = manifestCache;
+    this.projectNames = projectNames;
   }
 
   @Override
   public void run() {
-    if (event.isDelete() && event.getRefName().startsWith(Constants.R_HEADS)
-        || event.getRefName().startsWith(Constants.R_TAGS)) {
+    String canonicalProject =
+        projectNames.getCanonicalProject(event.getProjectName());
+    if (event.isDelete() && (event.getRefName().startsWith(Constants.R_HEADS)
+        || event.getRefName().startsWith(Constants.R_TAGS))) {
       // Ref was deleted... clean up any references
-      Ref ref = Ref.fetchByRef(getCanonicalProject(event.getProjectName()),
-          event.getRefName());
+      Ref ref = Ref.fetchByRef(canonicalProject, event.getRefName());
       if (ref != null) {
         ref.delete();
       }
       if (event.getRefName().startsWith(Constants.R_HEADS)) {
         // Also clean up uses from this ref
-        Usage.deleteByBranch(getCanonicalProject(event.getProjectName()),
-            event.getRefName());
+        Usage.deleteByBranch(canonicalProject, event.getRefName());
       }
     } else if (event.getRefName().startsWith(Constants.R_TAGS)) {
-      Ref updatedRef = new Ref(getCanonicalProject(event.getProjectName()),
-          event.getRefName(), event.getNewObjectId());
-      updatedRef.save();
+      saveRef(new Ref(canonicalProject, event.getRefName(),
+          event.getNewObjectId()));
     } else if (event.getRefName().startsWith(Constants.R_HEADS)) {
-      Ref updatedRef = new Ref(getCanonicalProject(event.getProjectName()),
-          event.getRefName(), event.getNewObjectId());
-      updatedRef.save();
-      Project.NameKey nameKey = new Project.NameKey(event.getProjectName());
-      try {
-        if (Config.refreshAllSubmodules() || event.isCreate()
-            || isSubmoduleUpdate(event, nameKey)) {
-          Map<String, String> submodules = getSubmodules(event, nameKey);
-          updateProjects(event.getProjectName(), event.getRefName(),
-              submodules);
+      // Only record the new commit once its uses are stored. Otherwise an
+      // incremental scan would consider the ref up to date and never
+      // process it again.
+      if (updateBranch()) {
+        saveRef(new Ref(canonicalProject, event.getRefName(),
+            event.getNewObjectId()));
+      }
+    } else {
+      metrics.skippedRefs.increment();
+    }
+  }
+
+  private void saveRef(Ref ref) {
+    if (scanResults != null) {
+      // Stored by the scan along with the other refs of its batch
+      scanResults.addRef(ref);
+    } else {
+      ref.save();
+    }
+  }
+
+  /** @return true if all uses of the branch were updated */
+  private boolean updateBranch() {
+    // A newly created (or rescanned) ref is analysed completely, so a
+    // result for the same commit from earlier in this scan can be reused.
+    ObjectId newId = ObjectId.fromString(event.getNewObjectId());
+    ScanResults.Analysis analysis = null;
+    if (scanResults != null && event.isCreate()) {
+      ScanResults.Analysis cached = scanResults.get(newId);
+      if (cached != null) {
+        apply(cached);
+        return !failed;
+      }
+      analysis = new ScanResults.Analysis();
+    }
+
+    Project.NameKey nameKey = new Project.NameKey(event.getProjectName());
+    // Open the repository once and share the walk (and its ObjectReader)
+    // between all of the steps below.
+    try (Repository repo = openRepository(nameKey);
+        RevWalk walk = new RevWalk(repo)) {
+      RevTree oldTree = null;
+      boolean complete = event.isCreate();
+      if (!event.isCreate()) {
+        try {
+          oldTree = walk
+              .parseCommit(ObjectId.fromString(event.getOldObjectId()))
+              .getTree();
+        } catch (MissingObjectException e) {
+          // The previous commit is gone, e.g. pruned after a force push.
+          // Start over from the new commit alone.
+          log.warn(String.format("Previous commit %s of %s %s is missing;"
+              + " analysing %s completely", event.getOldObjectId(),
+              event.getProjectName(), event.getRefName(), newId.name()));
+          Usage.deleteByBranch(
+              projectNames.getCanonicalProject(event.getProjectName()),
+              event.getRefName());
+          complete = true;
         }
-        if (Config.parseManifests()) {
-          parseManifests(event, nameKey);
+      }
+      RevTree newTree = walk.parseCommit(newId).getTree();
+      RootTree root = RootTree.read(walk.getObjectReader(), newTree);
+
+      if (Config.refreshAllSubmodules() || complete
+          || hasGitlinkChanges(walk.getObjectReader(), oldTree, newTree)) {
+        Map<String, String> submodules =
+            getSubmodules(walk.getObjectReader(), newTree, root);
+        if (analysis != null) {
+          analysis.setSubmodules(submodules);
         }
-      } catch (IOException e) {
-        log.error(e.getMessage(), e);
+        updateProjects(event.getProjectName(), event.getRefName(),
+            submodules);
+      }
+      if (Config.parseManifests()) {
+        RootTree oldRoot = null;
+        if (oldTree != null) {
+          oldRoot = RootTree.read(walk.getObjectReader(), oldTree);
+        }
+        parseManifests(walk.getObjectReader(), oldRoot, root, analysis);
+      }
+      if (analysis != null && !failed) {
+        scanResults.put(newId, analysis);
       }
+    } catch (IOException e) {
+      log.error(String.format("Unable to update %s %s: %s",
+          event.getProjectName(), event.getRefName(), e.getMessage()), e);
+      return false;
     }
+    return !failed;
   }
 
-  private void parseManifests(RefUpdate event, Project.NameKey project)
-      throws RepositoryNotFoundException, IOException {
-    if (event.isDelete()) {
-      return;
+  private Repository openRepository(Project.NameKey nameKey)
+      throws IOException {
+    Timer0.Context timer = metrics.repoOpenLatency.start();
+    try {
+      return repoManager.openRepository(nameKey);
+    } finally {
+      timer.close();
     }
-    try (Repository repo = repoManager.openRepository(project)) {
-      try (RevWalk walk = new RevWalk(repo); TreeWalk tw = new TreeWalk(repo)) {
-        RevCommit commit =
-            walk.parseCommit(repo.resolve(event.getNewObjectId()));
+  }
 
-        tw.setRecursive(false);
-        tw.addTree(commit.getTree());
-        ObjectReader or = tw.getObjectReader();
-        while (tw.next()) {
-          String path = tw.getPathString();
-          if (path.endsWith(".xml")) {
-            ManifestParser mp = new ManifestParser();
-            ObjectLoader ol = or.open(tw.getObjectId(0));
-            if (!ol.isLarge()) {
-              Map<String, String> tmp = mp.parseManifest(ol.getBytes());
-              HashMap<String, String> projects = new HashMap<>();
-              for (String key : tmp.keySet()) {
-                projects
-                    .put(
-                        normalizePath(String.format("%s:%s",
-                            event.getProjectName(), path), key, true),
-                    tmp.get(key));
-              }
-              updateProjects(
-                  String.format("%s:%s", event.getProjectName(), path),
-                  event.getRefName(), projects);
-            } else {
-              log.warn(String.format(
-                  "project: %s, branch: %s, file: %s is too large, "
-                      + "skipping manifest parse",
-                  event.getProjectName(), event.getRefName(),
-                  tw.getPathString()));
-            }
-          }
+  private boolean hasGitlinkChanges(ObjectReader reader, RevTree oldTree,
+      RevTree newTree) throws IOException {
+    Timer0.Context timer = metrics.gitlinkDiffLatency.start();
+    try {
+      return GitlinkDiff.hasChanges(reader, oldTree, newTree);
+    } finally {
+      timer.close();
+    }
+  }
+
+  private void apply(ScanResults.Analysis analysis) {
+    updateProjects(event.getProjectName(), event.getRefName(),
+        new HashMap<>(analysis.getSubmodules()));
+    for (Map.Entry<String, Map<String, String>> manifest : analysis
+        .getManifests().entrySet()) {
+      updateProjects(
+          String.format("%s:%s", event.getProjectName(), manifest.getKey()),
+          event.getRefName(), new HashMap<>(manifest.getValue()));
+    }
+  }
+
+  private void parseManifests(ObjectReader or, RootTree oldRoot,
+      RootTree root, ScanResults.Analysis analysis) throws IOException {
+    if (oldRoot != null) {
+      // Manifests that were removed no longer use anything.
+      for (String path : oldRoot.manifests.keySet()) {
+        if (!root.manifests.containsKey(path)) {
+          updateProjects(String.format("%s:%s", event.getProjectName(), path),
+              event.getRefName(), new HashMap<String, String>());
         }
       }
     }
+    for (String path : root.manifests.keySet()) {
+      HashMap<String, String> projects;
+      Timer0.Context timer = metrics.manifestParseLatency.start();
+      try {
+        projects = readManifest(or, path, oldRoot, root);
+      } finally {
+        timer.close();
+      }
+      if (projects == null) {
+        continue;
+      }
+      if (analysis != null) {
+        analysis.addManifest(path, projects);
+      }
+      updateProjects(String.format("%s:%s", event.getProjectName(), path),
+          event.getRefName(), projects);
+    }
   }
 
   /**
-   * Has a submodule been updated?
-   *
-   * @param event the Event
-   * @return True if a submodule update occurred, otherwise False.
+   * @return the projects of a manifest, or null if they need not be updated
    */
-  private boolean isSubmoduleUpdate(RefUpdate event, Project.NameKey project)
-      throws RepositoryNotFoundException, IOException {
-    if (event.isDelete()) {
-      return false;
+  private HashMap<String, String> readManifest(ObjectReader or, String path,
+      RootTree oldRoot, RootTree root) throws IOException {
+    ManifestCache.Graph graph;
+    try {
+      graph = manifestCache.getGraph(or, root.manifests.get(path), root);
+      if (oldRoot != null && oldRoot.manifests.containsKey(path)
+          && graph.equals(manifestCache.getGraph(or,
+              oldRoot.manifests.get(path), oldRoot))) {
+        // Neither the manifest nor anything it includes changed since the
+        // previous state of the branch
+        return null;
+      }
+    } catch (ManifestCache.ManifestTooLargeException e) {
+      // Keep the uses recorded so far rather than dropping them
+      log.warn(String.format("Skipping %s in %s branch %s: %s", path,
+          event.getProjectName(), event.getRefName(), e.getMessage()));
+      return null;
     }
-    try (Repository repo = repoManager.openRepository(project)) {
-      try (RevWalk walk = new RevWalk(repo);
-          DiffFormatter df = new DiffFormatter(DisabledOutputStream.INSTANCE)) {
-        RevTree aTree = null;
-        if (!event.isCreate()) {
-          // If this is a new ref, we can't get the original commit.
-          // We can still use the DiffFormatter to give us what changed
-          // by passing null, however.
-          RevCommit aCommit =
-              walk.parseCommit(repo.resolve(event.getOldObjectId()));
-          aTree = aCommit.getTree();
-        }
-        RevCommit bCommit =
-            walk.parseCommit(repo.resolve(event.getNewObjectId()));
-        RevTree bTree = bCommit.getTree();
+    Map<String, String> tmp = manifestCache.getProjects(graph);
+    HashMap<String, String> projects = new HashMap<>();
+    for (Map.Entry<String, String> e : tmp.entrySet()) {
+      projects.put(projectNames.normalizePath(
+          String.format("%s:%s", event.getProjectName(), path), e.getKey(),
+          true), e.getValue());
+    }
+    return projects;
+  }
 
-        df.setRepository(repo);
-        df.setDiffComparator(RawTextComparator.DEFAULT);
-        df.setDetectRenames(true);
-        List<DiffEntry> diffEntries = df.scan(aTree, bTree);
-        for (DiffEntry de : diffEntries) {
-          FileMode oldMode = de.getOldMode();
-          FileMode newMode = de.getNewMode();
-          if ((oldMode != null && oldMode == FileMode.GITLINK)
-              || (newMode != null && newMode == FileMode.GITLINK)) {
-            return true;
-          }
-        }
-      }
+  private Map<String, String> getSubmodules(ObjectReader reader, RevTree tree,
+      RootTree root) throws IOException {
+    Timer0.Context timer = metrics.gitmodulesParseLatency.start();
+    try {
+      return readSubmodules(reader, tree, root);
+    } finally {
+      timer.close();
     }
-    return false;
   }
 
-  private Map<String, String> getSubmodules(RefUpdate event,
-      Project.NameKey project) throws RepositoryNotFoundException, IOException {
+  private Map<String, String> readSubmodules(ObjectReader reader,
+      RevTree tree, RootTree root) throws IOException {
     HashMap<String, String> submodules = new HashMap<>();
-    try (Repository repo = repoManager.openRepository(project)) {
-      try (RevWalk walk = new RevWalk(repo);
-          SubmoduleWalk sw = new SubmoduleWalk(repo);
-          TreeWalk cw = new TreeWalk(repo)) {
-        org.eclipse.jgit.lib.Config modulesConfig = null;
+    if (root.gitmodules == null) {
+      return submodules;
+    }
 
-        // TODO: Nasty hack! Work around JGit bug where modules aren't
-        // found if path is not the same as the name in the config!
-        // Also, BlobBasedConfig (which is used by SubmoduleWalk) doesn't
-        // handle UTF-8 BOMs, so we need to do some massaging.
-        RevCommit commit =
-            walk.parseCommit(repo.resolve(event.getNewObjectId()));
-        cw.addTree(commit.getTree());
-        cw.setRecursive(false);
-        PathFilter filter = PathFilter.create(Constants.DOT_GIT_MODULES);
-        cw.setFilter(filter);
-        while (cw.next()) {
-          if (filter.isDone(cw)) {
-            ObjectReader reader = repo.newObjectReader();
-            String decoded = "";
-            try {
-              ObjectLoader loader =
-                  reader.open(cw.getObjectId(0), Constants.OBJ_BLOB);
-              byte[] configBytes = loader.getCachedBytes(Integer.MAX_VALUE);
-              if (configBytes.length >= 3 && configBytes[0] == (byte) 0xEF
-                  && configBytes[1] == (byte) 0xBB
-                  && configBytes[2] == (byte) 0xBF) {
-                decoded = RawParseUtils.decode(RawParseUtils.UTF8_CHARSET,
-                    configBytes, 3, configBytes.length);
-              } else {
-                decoded = RawParseUtils.decode(configBytes);
-              }
-            } catch (IOException e) {
-              log.error(
-                  String.format("Unable to load .gitmodules in %s branch %s",
-                      event.getProjectName(), event.getRefName()),
-                  e);
-            }
-            modulesConfig = new org.eclipse.jgit.lib.Config();
-            modulesConfig.fromText(decoded);
-          }
-        }
-        sw.setTree(commit.getTree());
-        sw.setRootTree(commit.getTree());
-        sw.setModulesConfig(modulesConfig);
-        while (sw.next()) {
-          String modulesUrl = sw.getModulesUrl();
-          if (modulesUrl == null && modulesConfig != null) {
-            for (String key : modulesConfig
-                .getSubsections(ConfigConstants.CONFIG_SUBMODULE_SECTION)) {
-              if (sw.getPath()
-                  .equals(modulesConfig.getString(
-                      ConfigConstants.CONFIG_SUBMODULE_SECTION, key,
-                      ConfigConstants.CONFIG_KEY_PATH))) {
-                modulesUrl = modulesConfig.getString(
-                    ConfigConstants.CONFIG_SUBMODULE_SECTION, key,
-                    ConfigConstants.CONFIG_KEY_URL);
-                break;
-              }
-            }
-          }
-          if (modulesUrl != null) {
+    // BlobBasedConfig doesn't handle UTF-8 BOMs, so we need to do some
+    // massaging before parsing .gitmodules ourselves.
+    org.eclipse.jgit.lib.Config modulesConfig =
+        new org.eclipse.jgit.lib.Config();
+    try {
+      ObjectLoader loader = reader.open(root.gitmodules, Constants.OBJ_BLOB);
+      byte[] configBytes = loader.getCachedBytes(Integer.MAX_VALUE);
+      String decoded;
+      if (configBytes.length >= 3 && configBytes[0] == (byte) 0xEF
+          && configBytes[1] == (byte) 0xBB && configBytes[2] == (byte) 0xBF) {
+        decoded = RawParseUtils.decode(RawParseUtils.UTF8_CHARSET, configBytes,
+            3, configBytes.length);
+      } else {
+        decoded = RawParseUtils.decode(configBytes);
+      }
+      modulesConfig.fromText(decoded);
+    } catch (IOException e) {
+      log.error(String.format("Unable to load .gitmodules in %s branch %s",
+          event.getProjectName(), event.getRefName()), e);
+      return submodules;
+    } catch (ConfigInvalidException e) {
+      metrics.parseFailures.increment();
+      log.warn(String.format(
+          "Invalid .gitmodules configuration while parsing %s branch %s",
+          event.getProjectName(), event.getRefName()), e);
+      return submodules;
+    }
+
+    // Map each submodule path to its URL. Modules are looked up by path
+    // rather than by name, as the two don't have to match.
+    Map<String, String> urls = new HashMap<>();
+    for (String name : modulesConfig
+        .getSubsections(ConfigConstants.CONFIG_SUBMODULE_SECTION)) {
+      String path = modulesConfig.getString(
+          ConfigConstants.CONFIG_SUBMODULE_SECTION, name,
+          ConfigConstants.CONFIG_KEY_PATH);
+      String url = modulesConfig.getString(
+          ConfigConstants.CONFIG_SUBMODULE_SECTION, name,
+          ConfigConstants.CONFIG_KEY_URL);
+      if (path == null) {
+        path = name;
+      }
+      if (url != null) {
+        urls.put(path, url);
+      } else {
+        log.warn(String.format(
+            "invalid .gitmodules in %s %s configuration: missing url for %s",
+            event.getProjectName(), event.getRefName(), path));
+      }
+    }
+    if (urls.isEmpty()) {
+      return submodules;
+    }
+
+    // Only descend into the trees leading to configured submodules.
+    try (TreeWalk tw = new TreeWalk(reader)) {
+      tw.addTree(tree);
+      tw.setRecursive(true);
+      tw.setFilter(PathFilterGroup.createFromStrings(urls.keySet()));
+      while (tw.next()) {
+        if (tw.getFileMode(0) == FileMode.GITLINK) {
+          String url = urls.get(tw.getPathString());
+          if (url != null) {
             submodules.put(
-                normalizePath(event.getProjectName(), modulesUrl, false),
-                sw.getObjectId().name());
-          } else {
-            log.warn(String.format(
-                "invalid .gitmodules in %s %s configuration: missing url for %s",
-                event.getProjectName(), event.getRefName(), sw.getPath()));
+                projectNames.normalizePath(event.getProjectName(), url, false),
+                tw.getObjectId(0).name());
           }
         }
-      } catch (ConfigInvalidException e) {
-        log.warn(String.format(
-            "Invalid .gitmodules configuration while parsing %s branch %s",
-            event.getProjectName(), event.getRefName()), e);
       }
     }
     return submodules;
@@ -289,90 +371,87 @@ public class RefUpdateHandlerImpl implements RefUpdateHandler {
 
   private void updateProjects(String project, String branch,
       Map<String, String> projects) {
-    String canonicalProject = getCanonicalProject(project);
+    String canonicalProject = projectNames.getCanonicalProject(project);
     List<Usage> uses = Usage.fetchByProject(canonicalProject, branch);
+    List<Usage> saved = new ArrayList<>();
+    List<Usage> deleted = new ArrayList<>();
     for (Usage use : uses) {
       if (!projects.containsKey(use.getDestination())) {
         // No longer exists; delete.
-        use.delete();
+        deleted.add(use);
       } else {
         // Update SHA1 here.
-        use.setRef(projects.get(use.getDestination()));
-        use.save();
-        projects.remove(use.getDestination());
+        use.setRef(projects.remove(use.getDestination()));
+        saved.add(use);
       }
     }
-    // At this point, submodules only contains new elements.
+    // At this point, projects only contains new elements.
     // Create them.
-    for (String key : projects.keySet()) {
-      Usage use = new Usage(canonicalProject, branch, key, projects.get(key));
-      use.save();
+    for (Map.Entry<String, String> e : projects.entrySet()) {
+      saved.add(new Usage(canonicalProject, branch, e.getKey(), e.getValue()));
     }
-  }
-
-  private String getCanonicalProject(String project) {
-    String canonicalProject =
-        String.format("https://%s/%s", serverName, project);
-    try {
-      URL url = new URL(canonicalProject);
-      canonicalProject = url.getHost() + url.getPath();
-    } catch (MalformedURLException e) {
-      log.warn("Could not parse project as URL: " + canonicalProject);
+    metrics.usagesPerRef.record(saved.size());
+    if (!Usage.update(saved, deleted)) {
+      failed = true;
     }
-    return canonicalProject;
   }
 
-  private String normalizePath(String project, String destination,
-      boolean isManifest) {
-    String originalProject =
-        isManifest ? project.substring(0, project.lastIndexOf(":")) : project;
+  /**
+   * Blobs of interest found at the top level of a tree.
+   * <p>
+   * Also resolves manifest includes against the tree; includes are relative
+   * to the top level, where the manifests are.
+   */
+  private static class RootTree implements ManifestCache.IncludeResolver {
+    private final ObjectReader reader;
+    private final RevTree tree;
+    private ObjectId gitmodules;
+    private final Map<String, ObjectId> manifests = new LinkedHashMap<>();
+    private final Map<String, ObjectId> includes = new HashMap<>();
 
-    // Strip trailing slashes and .git suffix
-    if (destination.endsWith("/")) {
-      destination = destination.substring(0, destination.length() - 1);
+    private RootTree(ObjectReader reader, RevTree tree) {
+      this.reader = reader;
+      this.tree = tree;
     }
 
-    if (destination.endsWith(".git")) {
-      destination = destination.substring(0, destination.length() - 4);
+    static RootTree read(ObjectReader reader, RevTree tree)
+        throws IOException {
+      RootTree root = new RootTree(reader, tree);
+      try (TreeWalk tw = new TreeWalk(reader)) {
+        tw.addTree(tree);
+        tw.setRecursive(false);
+        while (tw.next()) {
+          if (tw.getFileMode(0).getObjectType() != Constants.OBJ_BLOB) {
+            continue;
+          }
+          String path = tw.getPathString();
+          if (path.equals(Constants.DOT_GIT_MODULES)) {
+            root.gitmodules = tw.getObjectId(0);
+          } else if (path.endsWith(".xml")) {
+            root.manifests.put(path, tw.getObjectId(0));
+          }
+        }
+      }
+      return root;
     }
 
-    // Handle relative and absolute paths on the same server
-    if (destination.startsWith("//")) {
-      // UNC path; let this pass through unaltered.
-      // This should be rather uncommon, though.
-      return destination;
-    }
-    if (destination.startsWith("/")) {
-      if (serverName != null) {
-        destination = serverName + destination;
-      } else {
-        log.warn("Could not parse absolute path; canonicalWebUrl not set");
+    @Override
+    public ObjectId resolve(String name) throws IOException {
+      ObjectId id = manifests.get(name);
+      if (id != null) {
+        return id;
       }
-    } else if (destination.startsWith(".")) {
-      if (serverName != null) {
-        Path path = Paths.get(String.format("/%s/%s", project, destination));
-        destination = serverName + path.normalize().toString();
-      } else {
-        log.warn("Could not parse relative path; canonicalWebUrl not set");
+      if (includes.containsKey(name)) {
+        return includes.get(name);
       }
-    } else if (!destination.matches("^[^:]+://.*")) {
-      if (serverName != null) {
-        destination = serverName + "/" + originalProject + "/" + destination;
-      } else {
-        log.warn("Could not parse relative path; canonicalWebURl not set");
+      try (TreeWalk tw = TreeWalk.forPath(reader, name, tree)) {
+        if (tw != null
+            && tw.getFileMode(0).getObjectType() == Constants.OBJ_BLOB) {
+          id = tw.getObjectId(0);
+        }
       }
+      includes.put(name, id);
+      return id;
     }
-
-    try {
-      // Replace the protocol with a known scheme, to avoid angering URL
-      destination = destination.replaceFirst("^[^:]+://", "");
-      URL url = new URL("https://" + destination);
-      destination = url.getHost();
-      Path path = Paths.get(url.getPath()).normalize();
-      destination += path.toString();
-    } catch (MalformedURLException e) {
-      log.warn("Could not parse destination as URL: " + destination);
-    }
-    return destination;
   }
 }
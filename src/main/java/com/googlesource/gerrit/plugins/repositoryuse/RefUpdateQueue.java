@@ -0,0 +1,309 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.server.git.WorkQueue;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.googlesource.gerrit.plugins.repositoryuse.Config.QueuePolicy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue processing ref updates outside of the thread that performed
+ * the push.
+ * <p>
+ * At most {@code updateQueueSize} updates may be pending at once. When the
+ * queue is full, {@code updateQueuePolicy} decides whether the update is
+ * dropped and its project is incrementally rescanned once the queue has
+ * drained (RESCAN, the default), or whether the pushing thread first waits up
+ * to {@code updateQueueTimeout} milliseconds for a free slot (BLOCK). A
+ * blocked update that still finds no slot is dropped for a rescan too. The
+ * rescan compares the refs of the project with their recorded RefStatus:
+ * refs that were created or moved are processed again, and the uses of refs
+ * that no longer exist are removed, so dropped deletions are recovered as
+ * well.
+ * <p>
+ * Updates to a project and ref that is already waiting in the queue are
+ * merged into the pending update instead of taking another slot, so only the
+ * settled state of a ref is processed. A ref is never processed by two
+ * threads at the same time.
+ */
+@Singleton
+public class RefUpdateQueue implements LifecycleListener {
+  private static final Logger log =
+      LoggerFactory.getLogger(RefUpdateQueue.class);
+
+  private final WorkQueue queue;
+  private final RefUpdateHandlerFactory refUpdateHandlerFactory;
+  private final ScanTaskFactory scanTaskFactory;
+  private final ScanningQueue scanningQueue;
+  private final Set<String> pendingRescans;
+  private final Map<String, RefUpdate> pending;
+  private final Set<String> inFlight;
+  // Pending refs whose task found an older state still in flight
+  private final Set<String> waiting;
+  private final AtomicLong received;
+  private final AtomicLong merged;
+  private ScheduledExecutorService threadPool;
+  private Semaphore slots;
+
+  @Inject
+  public RefUpdateQueue(WorkQueue queue,
+      RefUpdateHandlerFactory refUpdateHandlerFactory,
+      ScanTaskFactory scanTaskFactory, ScanningQueue scanningQueue) {
+    this.queue = queue;
+    this.refUpdateHandlerFactory = refUpdateHandlerFactory;
+    this.scanTaskFactory = scanTaskFactory;
+    this.scanningQueue = scanningQueue;
+    this.pendingRescans =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.pending = new HashMap<>();
+    this.inFlight = new HashSet<>();
+    this.waiting = new HashSet<>();
+    this.received = new AtomicLong();
+    this.merged = new AtomicLong();
+  }
+
+  @Override
+  public void start() {
+    slots = new Semaphore(Math.max(1, Config.getUpdateQueueSize()));
+    threadPool = queue.createQueue(Math.max(1, Config.getUpdateThreads()),
+        "(Repository-Usage-Update)");
+  }
+
+  @Override
+  public void stop() {
+    if (threadPool != null) {
+      threadPool.shutdown();
+    }
+    threadPool = null;
+  }
+
+  public void submit(RefUpdate update) {
+    received.incrementAndGet();
+    ScheduledExecutorService pool = threadPool;
+    if (pool == null) {
+      // Not started (or already stopped); fall back to processing inline.
+      refUpdateHandlerFactory.create(update).run();
+      return;
+    }
+
+    String key = getKey(update);
+    if (coalesce(key, update)) {
+      return;
+    }
+
+    if (!acquireSlot()) {
+      log.warn(String.format(
+          "Update queue full, dropping %s %s; project will be rescanned",
+          update.getProjectName(), update.getRefName()));
+      pendingRescans.add(update.getProjectName());
+      return;
+    }
+
+    synchronized (pending) {
+      // Another update for this ref may have been queued while waiting
+      // for a slot.
+      if (coalesce(key, update)) {
+        slots.release();
+        return;
+      }
+      pending.put(key, update);
+    }
+    pool.execute(new UpdateTask(key));
+  }
+
+  private boolean acquireSlot() {
+    if (slots.tryAcquire()) {
+      return true;
+    }
+    if (Config.getUpdateQueuePolicy() != QueuePolicy.BLOCK) {
+      return false;
+    }
+    try {
+      return slots.tryAcquire(Config.getUpdateQueueTimeout(),
+          TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /** @return number of updates received since the plugin was started */
+  public long getReceivedCount() {
+    return received.get();
+  }
+
+  /** @return number of updates merged into an already pending update */
+  public long getMergedCount() {
+    return merged.get();
+  }
+
+  /** @return number of updates waiting to be processed */
+  public int getPendingCount() {
+    synchronized (pending) {
+      return pending.size();
+    }
+  }
+
+  /**
+   * Wait until no update is waiting to be processed.
+   *
+   * @param timeoutMillis maximum time to wait
+   * @return true if no update is pending, false if the time ran out
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public boolean awaitNoPending(long timeoutMillis)
+      throws InterruptedException {
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    synchronized (pending) {
+      while (!pending.isEmpty()) {
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(pending, remaining);
+      }
+      return true;
+    }
+  }
+
+  private boolean coalesce(String key, RefUpdate update) {
+    synchronized (pending) {
+      RefUpdate queued = pending.get(key);
+      if (queued == null) {
+        return false;
+      }
+      pending.put(key, queued.merge(update));
+    }
+    merged.incrementAndGet();
+    log.debug(String.format("Merged update of %s %s into pending update",
+        update.getProjectName(), update.getRefName()));
+    return true;
+  }
+
+  // Caller must hold the lock on pending.
+  private RefUpdate remove(String key) {
+    RefUpdate update = pending.remove(key);
+    if (pending.isEmpty()) {
+      pending.notifyAll();
+    }
+    return update;
+  }
+
+  private static String getKey(RefUpdate update) {
+    return update.getProjectName() + "\0" + update.getRefName();
+  }
+
+  private void release() {
+    slots.release();
+    if (!pendingRescans.isEmpty()) {
+      ScheduledExecutorService scanPool = scanningQueue.getPool();
+      if (scanPool == null) {
+        return;
+      }
+      Iterator<String> it = pendingRescans.iterator();
+      while (it.hasNext()) {
+        String project = it.next();
+        it.remove();
+        // Only the refs that moved or disappeared since they were last
+        // recorded need to be processed again.
+        scanPool.execute(scanTaskFactory.create(project, null, true));
+      }
+    }
+  }
+
+  private class UpdateTask implements Runnable {
+    private final String key;
+    private final String description;
+
+    UpdateTask(String key) {
+      this.key = key;
+      this.description = key.replace('\0', ' ');
+    }
+
+    @Override
+    public void run() {
+      RefUpdate update;
+      synchronized (pending) {
+        if (!inFlight.add(key)) {
+          // An older state of this ref is still being processed; it
+          // resubmits this one when done. Further updates keep merging
+          // into it meanwhile.
+          waiting.add(key);
+          return;
+        }
+        update = remove(key);
+      }
+      try {
+        refUpdateHandlerFactory.create(update).run();
+      } catch (Exception e) {
+        log.error(String.format("Error updating %s %s: %s",
+            update.getProjectName(), update.getRefName(), e.getMessage()), e);
+      } finally {
+        boolean resubmit;
+        synchronized (pending) {
+          inFlight.remove(key);
+          resubmit = waiting.remove(key);
+        }
+        release();
+        if (resubmit) {
+          resubmit();
+        }
+      }
+    }
+
+    private void resubmit() {
+      ScheduledExecutorService pool = threadPool;
+      if (pool != null) {
+        try {
+          pool.execute(new UpdateTask(key));
+          return;
+        } catch (RejectedExecutionException e) {
+          // Stopping; drop the update as below
+        }
+      }
+      log.warn(String.format("Update queue stopped, dropping %s",
+          description));
+      synchronized (pending) {
+        remove(key);
+      }
+      release();
+    }
+
+    @Override
+    public String toString() {
+      return "(repository-usage) update " + description;
+    }
+  }
+}
@@ -15,6 +15,7 @@
 package com.googlesource.gerrit.plugins.repositoryuse;
 
 import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.gerrit.metrics.Timer0;
 
 import com.googlesource.gerrit.plugins.repositoryuse.Config.Database;
 
@@ -25,36 +26,58 @@ import org.slf4j.LoggerFactory;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
-import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.sql.Statement;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SQLDriver implements LifecycleListener {
   private static final Logger log =
       LoggerFactory.getLogger(ManifestParser.class);
-  private static final int POOL_SIZE = 5;
-  private static SimpleDateFormat sdf =
-      new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 
+  private final Metrics metrics;
   private BasicDataSource ds;
+  private Semaphore writes;
+  private final AtomicLong rowsWritten = new AtomicLong();
+  private final AtomicLong borrowed = new AtomicLong();
+  private final AtomicLong borrowFailures = new AtomicLong();
+  private final AtomicLong borrowWaitNanos = new AtomicLong();
 
-  public SQLDriver() {
+  public SQLDriver(Metrics metrics) {
+    this.metrics = metrics;
     ds = new BasicDataSource();
     try {
       ds.setDriverClassName(getDriver());
       ds.setUrl(getDatabaseUrl());
       ds.setUsername(Config.getDatabaseUser());
       ds.setPassword(Config.getDatabasePassword());
-      ds.setInitialSize(POOL_SIZE);
+      ds.setInitialSize(Config.getDatabasePoolInitialSize());
+      ds.setMaxActive(Config.getDatabasePoolMaxActive());
+      ds.setMaxIdle(Config.getDatabasePoolMaxIdle());
+      ds.setMaxWait(Config.getDatabasePoolMaxWait());
+      String validationQuery = Config.getDatabaseValidationQuery();
+      if (!validationQuery.isEmpty()) {
+        ds.setValidationQuery(validationQuery);
+        ds.setTestOnBorrow(true);
+      }
+      // The plugin only runs a handful of distinct statements
+      ds.setPoolPreparedStatements(true);
+      ds.setMaxOpenPreparedStatements(
+          Config.getDatabaseMaxOpenPreparedStatements());
     } catch (Exception e) {
       log.error("Unable to create database connection", e);
     }
+    if (Config.getDatabaseWriteLimit() > 0) {
+      writes = new Semaphore(Config.getDatabaseWriteLimit(), true);
+    }
   }
 
   @Override
@@ -73,68 +96,285 @@ public class SQLDriver implements LifecycleListener {
     }
   }
 
-  public List<Map<String, String>> fetchRows(String query, String... parameters)
-      throws SQLException {
-    ArrayList<Map<String, String>> result = new ArrayList<>();
-    try (Connection c = ds.getConnection();
-        PreparedStatement s = c.prepareStatement(query)) {
-      int i = 1;
-      for (String param : parameters) {
-        s.setString(i, param);
-        i++;
+  /**
+   * Fetch all rows matching a query.
+   *
+   * @param query the query to run
+   * @param mapper builds an object from the current row of the result
+   * @param parameters the values for the placeholders of the query
+   * @return the mapped rows, in the order returned by the database
+   * @throws SQLException if the query failed
+   */
+  public <T> List<T> fetch(String query, RowMapper<T> mapper,
+      Object... parameters) throws SQLException {
+    final List<T> result = new ArrayList<>();
+    forEach(query, mapper, new RowHandler<T>() {
+      @Override
+      public void handle(T row) {
+        result.add(row);
       }
-      ResultSet r = s.executeQuery();
-      ResultSetMetaData rsmd = r.getMetaData();
-      while (r.next()) {
-        HashMap<String, String> row = new HashMap<>(rsmd.getColumnCount());
-        for (i = 1; i <= rsmd.getColumnCount(); i++) {
-          row.put(rsmd.getColumnLabel(i).toLowerCase(), r.getString(i));
+    }, parameters);
+    return result;
+  }
+
+  /**
+   * Pass each row matching a query to a handler as it is read, without
+   * holding the whole result in memory.
+   * <p>
+   * Rows are read from the database {@code databaseFetchSize} at a time. As
+   * PostgreSQL only uses a cursor outside of auto-commit mode, the query
+   * runs in its own read-only transaction.
+   *
+   * @param query the query to run
+   * @param mapper builds an object from the current row of the result
+   * @param handler receives each mapped row
+   * @param parameters the values for the placeholders of the query
+   * @throws SQLException if the query failed
+   */
+  public <T> void forEach(String query, RowMapper<T> mapper,
+      RowHandler<T> handler, Object... parameters) throws SQLException {
+    Timer0.Context timer = metrics.databaseReadLatency.start();
+    try (Connection c = getConnection()) {
+      boolean autoCommit = c.getAutoCommit();
+      c.setAutoCommit(false);
+      try (PreparedStatement s = c.prepareStatement(query)) {
+        s.setFetchSize(Math.max(0, Config.getDatabaseFetchSize()));
+        int i = 1;
+        for (Object param : parameters) {
+          bind(s, i, param);
+          i++;
         }
-        result.add(row);
+        try (ResultSet r = s.executeQuery()) {
+          while (r.next()) {
+            handler.handle(mapper.map(r));
+          }
+        }
+      } finally {
+        c.rollback();
+        c.setAutoCommit(autoCommit);
       }
+    } finally {
+      timer.close();
     }
-    return result;
   }
 
-  public void execute(String query, String... parameters) throws SQLException {
-    try (Connection c = ds.getConnection();
-        PreparedStatement s = c.prepareStatement(query)) {
-      int i = 1;
-      for (String param : parameters) {
-        s.setString(i, param);
-        i++;
+  public void execute(String query, Object... parameters) throws SQLException {
+    Timer0.Context timer = metrics.databaseWriteLatency.start();
+    try {
+      acquireWrite();
+      try (Connection c = getConnection();
+          PreparedStatement s = c.prepareStatement(query)) {
+        int i = 1;
+        for (Object param : parameters) {
+          bind(s, i, param);
+          i++;
+        }
+        if (!s.execute() && s.getUpdateCount() > 0) {
+          rowsWritten.addAndGet(s.getUpdateCount());
+          if (c.getAutoCommit() == false) {
+            c.commit();
+          }
+        }
+      } finally {
+        releaseWrite();
       }
-      if (!s.execute() && s.getUpdateCount() > 0) {
-        if (c.getAutoCommit() == false) {
+    } finally {
+      timer.close();
+    }
+  }
+
+  /**
+   * Execute all statements of a batch in a single transaction.
+   * <p>
+   * Statements are sent as JDBC batches, one per distinct query, in the order
+   * the queries were first added. If any statement fails, the whole batch is
+   * rolled back.
+   *
+   * @param batch the statements to execute
+   * @throws SQLException if the batch could not be executed
+   */
+  public void execute(Batch batch) throws SQLException {
+    if (batch.isEmpty()) {
+      return;
+    }
+    Timer0.Context timer = metrics.databaseWriteLatency.start();
+    try {
+      acquireWrite();
+      try (Connection c = getConnection()) {
+        boolean autoCommit = c.getAutoCommit();
+        long rows = 0;
+        c.setAutoCommit(false);
+        try {
+          for (Map.Entry<String, List<Object[]>> e : batch.statements
+              .entrySet()) {
+            try (PreparedStatement s = c.prepareStatement(e.getKey())) {
+              for (Object[] parameters : e.getValue()) {
+                for (int i = 0; i < parameters.length; i++) {
+                  bind(s, i + 1, parameters[i]);
+                }
+                s.addBatch();
+              }
+              for (int count : s.executeBatch()) {
+                rows += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+              }
+            }
+          }
           c.commit();
+          rowsWritten.addAndGet(rows);
+        } catch (SQLException e) {
+          c.rollback();
+          throw e;
+        } finally {
+          c.setAutoCommit(autoCommit);
         }
+      } finally {
+        releaseWrite();
       }
+    } finally {
+      timer.close();
+    }
+  }
+
+  /**
+   * Bind a parameter by its type; dates are bound as timestamps and
+   * everything else except numbers as strings.
+   */
+  private static void bind(PreparedStatement s, int index, Object value)
+      throws SQLException {
+    if (value instanceof Date) {
+      s.setTimestamp(index, new Timestamp(((Date) value).getTime()));
+    } else if (value instanceof Integer) {
+      s.setInt(index, (Integer) value);
+    } else if (value instanceof Long) {
+      s.setLong(index, (Long) value);
+    } else {
+      s.setString(index, value != null ? value.toString() : null);
     }
   }
 
-  public String getDateAsString(Date date) {
-    if (date != null) {
-      return sdf.format(date);
+  /**
+   * Borrow a connection from the pool, keeping track of how long callers
+   * wait for one and how often none can be had.
+   */
+  private Connection getConnection() throws SQLException {
+    long start = System.nanoTime();
+    try {
+      Connection c = ds.getConnection();
+      borrowed.incrementAndGet();
+      return c;
+    } catch (SQLException e) {
+      borrowFailures.incrementAndGet();
+      log.warn(String.format("Unable to get a database connection "
+          + "(%d active, %d idle): %s", ds.getNumActive(), ds.getNumIdle(),
+          e.getMessage()));
+      throw e;
+    } finally {
+      borrowWaitNanos.addAndGet(System.nanoTime() - start);
     }
-    return sdf.format(new Date());
   }
 
-  public Date getStringAsDate(String date) {
-    if (date != null) {
+  /** @return connections currently borrowed from the pool */
+  public int getActiveConnections() {
+    return ds.getNumActive();
+  }
+
+  /** @return connections currently idle in the pool */
+  public int getIdleConnections() {
+    return ds.getNumIdle();
+  }
+
+  /** @return number of connections borrowed since the plugin was started */
+  public long getConnectionsBorrowed() {
+    return borrowed.get();
+  }
+
+  /** @return number of times no connection could be borrowed */
+  public long getConnectionFailures() {
+    return borrowFailures.get();
+  }
+
+  /** @return total time spent waiting for connections, in milliseconds */
+  public long getConnectionWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(borrowWaitNanos.get());
+  }
+
+  /** @return number of rows written since the plugin was started */
+  public long getRowsWritten() {
+    return rowsWritten.get();
+  }
+
+  /**
+   * Wait until another write may go to the database, if the number of
+   * concurrent writes is limited by databaseWriteLimit.
+   */
+  private void acquireWrite() throws SQLException {
+    if (writes != null) {
       try {
-        return sdf.parse(date);
-      } catch (ParseException e) {
-        log.warn("Unable to parse date", e);
+        writes.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting to write", e);
       }
     }
-    return new Date();
   }
 
-  public String getDateFormat() {
+  private void releaseWrite() {
+    if (writes != null) {
+      writes.release();
+    }
+  }
+
+  /**
+   * Build a statement that inserts a row, or updates it if a row with the
+   * same key already exists, as a single atomic statement.
+   *
+   * @param table the table to write to
+   * @param keys the columns making up the primary key
+   * @param columns all columns to write, including the key columns
+   * @param values the value placeholder for each column
+   * @return the dialect specific upsert statement
+   */
+  public String getUpsertQuery(String table, String[] keys, String[] columns,
+      String[] values) {
+    StringBuilder query = new StringBuilder();
     if (Config.getDatabaseType() == Database.POSTGRESQL) {
-      return "TO_TIMESTAMP(?, 'YYYY-MM-DD HH24:MI:SS')";
+      query.append("INSERT INTO ").append(table).append("(");
+      join(query, columns);
+      query.append(") VALUES (");
+      join(query, values);
+      query.append(") ON CONFLICT (");
+      join(query, keys);
+      query.append(") DO UPDATE SET ");
+      boolean first = true;
+      for (String column : columns) {
+        if (Arrays.asList(keys).contains(column)) {
+          continue;
+        }
+        if (!first) {
+          query.append(", ");
+        }
+        query.append(column).append("=EXCLUDED.").append(column);
+        first = false;
+      }
+    } else {
+      query.append("MERGE INTO ").append(table).append("(");
+      join(query, columns);
+      query.append(") KEY(");
+      join(query, keys);
+      query.append(") VALUES (");
+      join(query, values);
+      query.append(")");
+    }
+    return query.toString();
+  }
+
+  private static void join(StringBuilder sb, String[] values) {
+    for (int i = 0; i < values.length; i++) {
+      if (i > 0) {
+        sb.append(", ");
+      }
+      sb.append(values[i]);
     }
-    return "?";
   }
 
   private String getDriver() throws Exception {
@@ -155,4 +395,34 @@ public class SQLDriver implements LifecycleListener {
     }
     throw new Exception("Unsupported database engine");
   }
+
+  /** Builds an object from the current row of a {@link ResultSet}. */
+  public interface RowMapper<T> {
+    T map(ResultSet r) throws SQLException;
+  }
+
+  /** Receives the rows of a query one at a time. */
+  public interface RowHandler<T> {
+    void handle(T row);
+  }
+
+  /** Statements to be executed together by {@link SQLDriver#execute(Batch)}. */
+  public static class Batch {
+    private final Map<String, List<Object[]>> statements =
+        new LinkedHashMap<>();
+
+    public Batch add(String query, Object... parameters) {
+      List<Object[]> rows = statements.get(query);
+      if (rows == null) {
+        rows = new ArrayList<>();
+        statements.put(query, rows);
+      }
+      rows.add(parameters);
+      return this;
+    }
+
+    public boolean isEmpty() {
+      return statements.isEmpty();
+    }
+  }
 }
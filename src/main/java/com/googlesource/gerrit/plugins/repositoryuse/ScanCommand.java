@@ -27,7 +27,6 @@ import org.kohsuke.args4j.Option;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 @RequiresCapability(value = "administrateServer", scope = CapabilityScope.CORE)
 @CommandMetaData(name = "scan", description = "Scan specific projects or branches")
@@ -38,25 +37,77 @@ final class ScanCommand extends SshCommand {
   @Option(name = "--branch", metaVar = "BRANCH", usage = "branches to scan")
   private String[] branches;
 
+  @Option(name = "--incremental",
+      usage = "only scan refs that moved since they were last recorded")
+  private boolean incremental;
+
+  @Option(name = "--pause", metaVar = "JOB", usage = "pause a scan job")
+  private String pauseJob;
+
+  @Option(name = "--resume", metaVar = "JOB", usage = "resume a scan job")
+  private String resumeJob;
+
+  @Option(name = "--status", usage = "show the progress of running scans")
+  private boolean status;
+
+  @Option(name = "--wait",
+      usage = "show the progress of running scans until they are done")
+  private boolean await;
+
   @Argument(index = 0, multiValued = true, metaVar = "PROJECT", usage = "project name pattern")
   private List<String> projects = new ArrayList<>(2);
 
-  private final ScanTaskFactory scanTaskFactory;
-  private final ScheduledThreadPoolExecutor pool;
+  private static final long WAIT_INTERVAL_MS = 10000;
+
+  private final ScanJobs scanJobs;
+  private final ScanProgress progress;
+  private final SQLDriver sql;
   private final ProjectCache projectCache;
 
 
   @Inject
-  public ScanCommand(ScanTaskFactory scanTaskFactory,
-      @ScanningPool ScheduledThreadPoolExecutor pool,
+  public ScanCommand(ScanJobs scanJobs, ScanProgress progress, SQLDriver sql,
       ProjectCache projectCache) {
-    this.scanTaskFactory = scanTaskFactory;
-    this.pool = pool;
+    this.scanJobs = scanJobs;
+    this.progress = progress;
+    this.sql = sql;
     this.projectCache = projectCache;
   }
 
   @Override
   protected void run() throws UnloggedFailure, Failure, Exception {
+    if (pauseJob != null) {
+      if (!scanJobs.pause(pauseJob)) {
+        throw new UnloggedFailure(1, "error: no unfinished job " + pauseJob);
+      }
+      stdout.println("Paused scan job " + pauseJob);
+      return;
+    }
+    if (resumeJob != null) {
+      if (!scanJobs.resume(resumeJob)) {
+        throw new UnloggedFailure(1, "error: no unfinished job " + resumeJob);
+      }
+      stdout.println("Resumed scan job " + resumeJob);
+      return;
+    }
+
+    if (status || await) {
+      if (all || !projects.isEmpty()) {
+        throw new UnloggedFailure(1,
+            "error: cannot combine --status or --wait with a scan");
+      }
+      ScanProgress.Snapshot snapshot = progress.snapshot();
+      printStatus(snapshot);
+      while (await && !snapshot.isIdle()) {
+        stdout.flush();
+        Thread.sleep(WAIT_INTERVAL_MS);
+        snapshot = progress.snapshot();
+        stdout.println();
+        printStatus(snapshot);
+      }
+      return;
+    }
+
     if (all && projects.size() > 0) {
       throw new UnloggedFailure(1, "error: cannot combine --all and PROJECT");
     }
@@ -67,15 +118,31 @@ final class ScanCommand extends SshCommand {
       }
     }
 
+    List<ScanJob.Entry> entries = new ArrayList<>();
     for (String project : projects) {
       if (branches == null || branches.length == 0) {
-        pool.execute(scanTaskFactory.create(project));
+        entries.add(new ScanJob.Entry(project, null));
       } else {
         for (String branch : branches) {
-          pool.execute(scanTaskFactory.create(project, branch));
+          entries.add(new ScanJob.Entry(project, branch));
         }
       }
     }
+    ScanJob job = scanJobs.start(entries, incremental);
+    if (job == null) {
+      throw new UnloggedFailure(1, "error: unable to create scan job");
+    }
+    stdout.println("Started scan job " + job.getId());
+  }
+
+  private void printStatus(ScanProgress.Snapshot snapshot) {
+    stdout.println(snapshot);
+    stdout.println(String.format(
+        "Database: %d active, %d idle connections, %d borrowed, "
+            + "%d ms waited, %d failures",
+        sql.getActiveConnections(), sql.getIdleConnections(),
+        sql.getConnectionsBorrowed(), sql.getConnectionWaitMillis(),
+        sql.getConnectionFailures()));
   }
 
 }
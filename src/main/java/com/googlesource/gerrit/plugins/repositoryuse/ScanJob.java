@@ -0,0 +1,361 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A scan of a set of projects, persisted so that it survives restarts.
+ */
+public class ScanJob {
+  private static final Logger log = LoggerFactory.getLogger(ScanJob.class);
+  private static Table table = new Table();
+
+  public enum State {
+    RUNNING, PAUSED, DONE
+  }
+
+  private String id;
+  private State state;
+  private boolean incremental;
+  private Date lastUpdated;
+
+  public ScanJob(boolean incremental) {
+    init(UUID.randomUUID().toString().substring(0, 8), State.RUNNING,
+        incremental, new Date());
+  }
+
+  public ScanJob(String id, State state, boolean incremental, Date date) {
+    init(id, state, incremental, date);
+  }
+
+  private void init(String id, State state, boolean incremental, Date date) {
+    this.id = id;
+    this.state = state;
+    this.incremental = incremental;
+    this.lastUpdated = date;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public State getState() {
+    return state;
+  }
+
+  public void setState(State state) {
+    this.state = state;
+  }
+
+  public boolean isIncremental() {
+    return incremental;
+  }
+
+  public Date getLastUpdated() {
+    return lastUpdated;
+  }
+
+  public void save() {
+    lastUpdated = new Date();
+    log.debug(String.format("Saving ScanJob: %s, %s", id, state));
+    table.insertOrUpdate(this);
+  }
+
+  /**
+   * Store a new job together with all of its entries.
+   *
+   * @param entries the distinct projects (and branches) to scan
+   * @return false if the job could not be stored
+   */
+  public boolean create(Collection<Entry> entries) {
+    lastUpdated = new Date();
+    log.debug(String.format("Creating ScanJob: %s, %d entries", id,
+        entries.size()));
+    return table.create(this, entries);
+  }
+
+  /** Mark the job as done and forget its entries. */
+  public void complete() {
+    state = State.DONE;
+    lastUpdated = new Date();
+    log.debug(String.format("Completing ScanJob: %s", id));
+    table.complete(this);
+  }
+
+  public List<Entry> fetchPendingEntries() {
+    return table.fetchEntries(id, false);
+  }
+
+  public void markDone(Entry entry) {
+    table.markDone(id, entry);
+  }
+
+  public static ScanJob fetchById(String id) {
+    List<ScanJob> tmp = table.fetchById(id);
+    if (tmp.size() == 1) {
+      return tmp.get(0);
+    }
+    return null;
+  }
+
+  public static List<ScanJob> fetchUnfinished() {
+    return table.fetchUnfinished();
+  }
+
+  /** A project, or a single branch of a project, scanned by a job. */
+  public static class Entry {
+    private final String project;
+    private final String branch;
+
+    /**
+     * @param project the project to scan
+     * @param branch the branch to scan, or null for all branches and tags
+     */
+    public Entry(String project, String branch) {
+      this.project = project;
+      this.branch = branch;
+    }
+
+    public String getProject() {
+      return project;
+    }
+
+    public String getBranch() {
+      return branch;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof Entry)) {
+        return false;
+      }
+      Entry e = (Entry) o;
+      return project.equals(e.project) && (branch == null
+          ? e.branch == null : branch.equals(e.branch));
+    }
+
+    @Override
+    public int hashCode() {
+      return project.hashCode() * 31 + (branch == null ? 0 : branch.hashCode());
+    }
+  }
+
+  static class Table {
+    private static final String TABLE_NAME = "ScanJob";
+    private static final String ENTRY_TABLE_NAME = "ScanJobProject";
+    private static final String ID = "id";
+    private static final String STATE = "state";
+    private static final String INCREMENTAL = "incremental";
+    private static final String JOB = "job";
+    private static final String PROJECT = "project";
+    private static final String BRANCH = "branch";
+    private static final String DONE = "done";
+    private static final String DATE = "last_update";
+    // Stored instead of NULL, as the branch is part of the primary key
+    private static final String ALL_BRANCHES = "";
+    private static final SQLDriver.RowMapper<ScanJob> JOB_MAPPER =
+        new SQLDriver.RowMapper<ScanJob>() {
+          @Override
+          public ScanJob map(ResultSet r) throws SQLException {
+            State state;
+            try {
+              state = State.valueOf(r.getString(STATE));
+            } catch (IllegalArgumentException | NullPointerException e) {
+              log.warn("Unknown scan job state: " + r.getString(STATE));
+              return null;
+            }
+            return new ScanJob(r.getString(ID), state,
+                Boolean.parseBoolean(r.getString(INCREMENTAL)),
+                r.getTimestamp(DATE));
+          }
+        };
+    private static final SQLDriver.RowMapper<Entry> ENTRY_MAPPER =
+        new SQLDriver.RowMapper<Entry>() {
+          @Override
+          public Entry map(ResultSet r) throws SQLException {
+            return new Entry(r.getString(PROJECT),
+                fromColumn(r.getString(BRANCH)));
+          }
+        };
+    @Inject
+    private static SQLDriver sql;
+
+    public Table() {
+      // Create the tables if they don't exist
+      createTable();
+    }
+
+    private void createTable() {
+      StringBuilder query = new StringBuilder();
+      query.append(String.format("CREATE TABLE IF NOT EXISTS %s(", TABLE_NAME));
+      query.append(String.format("%s VARCHAR(40),", ID));
+      query.append(String.format("%s VARCHAR(16),", STATE));
+      query.append(String.format("%s VARCHAR(5),", INCREMENTAL));
+      query.append(String.format("%s TIMESTAMP DEFAULT NOW(),", DATE));
+      query.append(String.format("PRIMARY KEY (%s))", ID));
+      try {
+        sql.execute(query.toString());
+      } catch (SQLException e) {
+        log.error("Unable to create ScanJob table", e);
+      }
+
+      query = new StringBuilder();
+      query.append(
+          String.format("CREATE TABLE IF NOT EXISTS %s(", ENTRY_TABLE_NAME));
+      query.append(String.format("%s VARCHAR(40),", JOB));
+      query.append(String.format("%s VARCHAR(1023),", PROJECT));
+      query.append(String.format("%s VARCHAR(255),", BRANCH));
+      query.append(String.format("%s VARCHAR(5),", DONE));
+      query.append(
+          String.format("PRIMARY KEY (%s, %s, %s))", JOB, PROJECT, BRANCH));
+      try {
+        sql.execute(query.toString());
+      } catch (SQLException e) {
+        log.error("Unable to create ScanJobProject table", e);
+      }
+    }
+
+    public void insertOrUpdate(ScanJob j) {
+      try {
+        sql.execute(getUpsertQuery(), getUpsertParameters(j));
+      } catch (SQLException e) {
+        log.error("Unable to save scan job", e);
+      }
+    }
+
+    public boolean create(ScanJob j, Collection<Entry> entries) {
+      SQLDriver.Batch batch = new SQLDriver.Batch();
+      batch.add(getUpsertQuery(), getUpsertParameters(j));
+      String query = "INSERT INTO " + ENTRY_TABLE_NAME + "(" + JOB + ", "
+          + PROJECT + ", " + BRANCH + ", " + DONE + ") VALUES (?, ?, ?, ?)";
+      for (Entry e : entries) {
+        batch.add(query, j.getId(), e.getProject(), toColumn(e.getBranch()),
+            Boolean.FALSE.toString());
+      }
+      try {
+        sql.execute(batch);
+        return true;
+      } catch (SQLException e) {
+        log.error("Unable to create scan job", e);
+        return false;
+      }
+    }
+
+    public void complete(ScanJob j) {
+      SQLDriver.Batch batch = new SQLDriver.Batch();
+      batch.add(getUpsertQuery(), getUpsertParameters(j));
+      batch.add("DELETE FROM " + ENTRY_TABLE_NAME + " WHERE " + JOB + "=?",
+          j.getId());
+      try {
+        sql.execute(batch);
+      } catch (SQLException e) {
+        log.error("Unable to complete scan job", e);
+      }
+    }
+
+    public void markDone(String job, Entry e) {
+      String query = "UPDATE " + ENTRY_TABLE_NAME + " SET " + DONE
+          + "=? WHERE " + JOB + "=? AND " + PROJECT + "=? AND " + BRANCH
+          + "=?";
+      try {
+        sql.execute(query, Boolean.TRUE.toString(), job, e.getProject(),
+            toColumn(e.getBranch()));
+      } catch (SQLException ex) {
+        log.error("Unable to update scan job progress", ex);
+      }
+    }
+
+    public List<ScanJob> fetchById(String id) {
+      String query = "SELECT " + ID + ", " + STATE + ", " + INCREMENTAL + ", "
+          + DATE + " FROM " + TABLE_NAME + " WHERE " + ID + "=?";
+      try {
+        return fetchJobs(query, id);
+      } catch (SQLException e) {
+        log.error("Unable to execute query", e);
+      }
+      return Collections.emptyList();
+    }
+
+    public List<ScanJob> fetchUnfinished() {
+      String query = "SELECT " + ID + ", " + STATE + ", " + INCREMENTAL + ", "
+          + DATE + " FROM " + TABLE_NAME + " WHERE " + STATE + "<>?";
+      try {
+        return fetchJobs(query, State.DONE.name());
+      } catch (SQLException e) {
+        log.error("Unable to execute query", e);
+      }
+      return Collections.emptyList();
+    }
+
+    public List<Entry> fetchEntries(String job, boolean done) {
+      String query = "SELECT " + PROJECT + ", " + BRANCH + " FROM "
+          + ENTRY_TABLE_NAME + " WHERE " + JOB + "=? AND " + DONE + "=?";
+      try {
+        return sql.fetch(query, ENTRY_MAPPER, job, Boolean.toString(done));
+      } catch (SQLException e) {
+        log.error("Unable to execute query", e);
+      }
+      return Collections.emptyList();
+    }
+
+    private String getUpsertQuery() {
+      return sql.getUpsertQuery(TABLE_NAME, new String[] {ID},
+          new String[] {ID, STATE, INCREMENTAL, DATE},
+          new String[] {"?", "?", "?", "?"});
+    }
+
+    private Object[] getUpsertParameters(ScanJob j) {
+      return new Object[] {j.getId(), j.getState().name(),
+          Boolean.toString(j.isIncremental()),
+          j.getLastUpdated()};
+    }
+
+    private static String toColumn(String branch) {
+      return branch == null ? ALL_BRANCHES : branch;
+    }
+
+    private static String fromColumn(String branch) {
+      return branch == null || branch.equals(ALL_BRANCHES) ? null : branch;
+    }
+
+    private List<ScanJob> fetchJobs(String query, Object... parameters)
+        throws SQLException {
+      final List<ScanJob> result = new ArrayList<>();
+      sql.forEach(query, JOB_MAPPER, new SQLDriver.RowHandler<ScanJob>() {
+        @Override
+        public void handle(ScanJob job) {
+          // Jobs in an unknown state are mapped to null
+          if (job != null) {
+            result.add(job);
+          }
+        }
+      }, parameters);
+      return result;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.gerrit.extensions.events.LifecycleListener;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import com.googlesource.gerrit.plugins.repositoryuse.ScanJob.Entry;
+import com.googlesource.gerrit.plugins.repositoryuse.ScanJob.State;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * Runs persisted scan jobs on the scanning pool.
+ * <p>
+ * Each finished project is recorded in the database, so a job that was
+ * interrupted by a restart resumes with the projects it had not finished yet.
+ * Once all projects are finished, the job is marked as done and its list of
+ * projects is removed.
+ * Pausing a job lets projects that are already being scanned complete, but
+ * keeps queued projects from starting.
+ */
+@Singleton
+public class ScanJobs implements LifecycleListener {
+  private static final Logger log = LoggerFactory.getLogger(ScanJobs.class);
+
+  private final ScanTaskFactory scanTaskFactory;
+  private final ScanningQueue scanningQueue;
+  private final ScanProgress progress;
+  // Entries queued or running per job; guarded by itself
+  private final Map<String, Set<Entry>> queued;
+  private final Map<String, State> states;
+
+  @Inject
+  public ScanJobs(ScanTaskFactory scanTaskFactory,
+      ScanningQueue scanningQueue, ScanProgress progress) {
+    this.scanTaskFactory = scanTaskFactory;
+    this.scanningQueue = scanningQueue;
+    this.progress = progress;
+    this.queued = new HashMap<>();
+    this.states = new HashMap<>();
+  }
+
+  @Override
+  public void start() {
+    for (ScanJob job : ScanJob.fetchUnfinished()) {
+      if (job.getState() == State.RUNNING) {
+        log.info("Resuming scan job " + job.getId());
+        schedule(job, job.fetchPendingEntries());
+      }
+    }
+  }
+
+  @Override
+  public void stop() {
+    synchronized (queued) {
+      queued.clear();
+      states.clear();
+    }
+  }
+
+  /**
+   * Create and start a new job.
+   *
+   * @param entries the projects (and branches) to scan; duplicates are
+   *        scanned once
+   * @param incremental whether to run incremental scans
+   * @return the new job, or null if it could not be stored
+   */
+  public ScanJob start(Collection<Entry> entries, boolean incremental) {
+    Set<Entry> distinct = new LinkedHashSet<>(entries);
+    ScanJob job = new ScanJob(incremental);
+    if (!job.create(distinct)) {
+      return null;
+    }
+    schedule(job, distinct);
+    return job;
+  }
+
+  /**
+   * @param id the job to pause
+   * @return false if there is no unfinished job with this id
+   */
+  public boolean pause(String id) {
+    ScanJob job = ScanJob.fetchById(id);
+    if (job == null || job.getState() == State.DONE) {
+      return false;
+    }
+    synchronized (queued) {
+      states.put(id, State.PAUSED);
+    }
+    job.setState(State.PAUSED);
+    job.save();
+    return true;
+  }
+
+  /**
+   * @param id the job to resume
+   * @return false if there is no unfinished job with this id
+   */
+  public boolean resume(String id) {
+    ScanJob job = ScanJob.fetchById(id);
+    if (job == null || job.getState() == State.DONE) {
+      return false;
+    }
+    job.setState(State.RUNNING);
+    job.save();
+    schedule(job, job.fetchPendingEntries());
+    return true;
+  }
+
+  private void schedule(ScanJob job, Collection<Entry> entries) {
+    ScheduledExecutorService pool = scanningQueue.getPool();
+    if (pool == null) {
+      log.warn("Scanning pool not started; not scheduling job " + job.getId());
+      return;
+    }
+    boolean idle;
+    synchronized (queued) {
+      states.put(job.getId(), job.getState());
+      Set<Entry> jobQueue = queued.get(job.getId());
+      if (jobQueue == null) {
+        jobQueue = new HashSet<>();
+        queued.put(job.getId(), jobQueue);
+      }
+      for (Entry e : entries) {
+        // Entries still queued from before a pause are not queued again
+        if (jobQueue.add(e)) {
+          progress.queued(1);
+          pool.execute(new JobTask(job, e));
+        }
+      }
+      idle = jobQueue.isEmpty();
+    }
+    if (idle) {
+      finish(job);
+    }
+  }
+
+  private void finished(ScanJob job, Entry entry, boolean done) {
+    progress.finished();
+    if (done) {
+      job.markDone(entry);
+    }
+    boolean idle;
+    synchronized (queued) {
+      Set<Entry> jobQueue = queued.get(job.getId());
+      if (jobQueue == null) {
+        // Stopped meanwhile
+        return;
+      }
+      jobQueue.remove(entry);
+      idle = jobQueue.isEmpty()
+          && states.get(job.getId()) == State.RUNNING;
+    }
+    if (idle) {
+      finish(job);
+    }
+  }
+
+  private void finish(ScanJob job) {
+    if (job.fetchPendingEntries().isEmpty()) {
+      synchronized (queued) {
+        queued.remove(job.getId());
+        states.remove(job.getId());
+      }
+      job.complete();
+      log.info("Scan job " + job.getId() + " finished");
+    }
+  }
+
+  private class JobTask implements Runnable {
+    private final ScanJob job;
+    private final Entry entry;
+
+    JobTask(ScanJob job, Entry entry) {
+      this.job = job;
+      this.entry = entry;
+    }
+
+    @Override
+    public void run() {
+      synchronized (queued) {
+        if (states.get(job.getId()) != State.RUNNING) {
+          // Paused (or stopped); the entry stays pending in the database
+          Set<Entry> jobQueue = queued.get(job.getId());
+          if (jobQueue != null) {
+            jobQueue.remove(entry);
+          }
+          progress.skipped();
+          return;
+        }
+      }
+      progress.started();
+      ScanTask task = scanTaskFactory
+          .create(entry.getProject(), entry.getBranch(), job.isIncremental())
+          .whenDone(new Runnable() {
+            @Override
+            public void run() {
+              finished(job, entry, true);
+            }
+          });
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        log.error(String.format("Error scanning %s in job %s",
+            entry.getProject(), job.getId()), e);
+        finished(job, entry, false);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format("(repository-usage) job %s: %s", job.getId(),
+          entry.getBranch() != null
+              ? entry.getProject() + " branch " + entry.getBranch()
+              : entry.getProject());
+    }
+  }
+}
@@ -0,0 +1,169 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live counters of the scans run by {@link ScanJobs}.
+ * <p>
+ * Counters start over when new work is queued while no scan is queued or
+ * running, so rates and estimates describe the current batch of scans.
+ */
+@Singleton
+public class ScanProgress {
+  private final SQLDriver sql;
+  private final Metrics metrics;
+  private long queued;
+  private long running;
+  private long finished;
+  private long refs;
+  private long startTime;
+  private long rowsAtStart;
+
+  @Inject
+  public ScanProgress(SQLDriver sql, Metrics metrics) {
+    this.sql = sql;
+    this.metrics = metrics;
+    this.startTime = System.nanoTime();
+  }
+
+  synchronized void queued(int count) {
+    if (queued == 0 && running == 0) {
+      finished = 0;
+      refs = 0;
+      startTime = System.nanoTime();
+      rowsAtStart = sql.getRowsWritten();
+    }
+    queued += count;
+  }
+
+  synchronized void started() {
+    queued--;
+    running++;
+  }
+
+  synchronized void skipped() {
+    queued--;
+  }
+
+  synchronized void finished() {
+    running--;
+    finished++;
+  }
+
+  synchronized void refProcessed() {
+    refs++;
+  }
+
+  void refSkipped() {
+    metrics.skippedRefs.increment();
+  }
+
+  public synchronized Snapshot snapshot() {
+    return new Snapshot(queued, running, finished, refs,
+        sql.getRowsWritten() - rowsAtStart,
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+  }
+
+  /** The state of the counters at one point in time. */
+  public static class Snapshot {
+    private final long queued;
+    private final long running;
+    private final long finished;
+    private final long refs;
+    private final long rows;
+    private final long elapsedMillis;
+
+    Snapshot(long queued, long running, long finished, long refs, long rows,
+        long elapsedMillis) {
+      this.queued = queued;
+      this.running = running;
+      this.finished = finished;
+      this.refs = refs;
+      this.rows = rows;
+      this.elapsedMillis = Math.max(1, elapsedMillis);
+    }
+
+    public boolean isIdle() {
+      return queued == 0 && running == 0;
+    }
+
+    public long getQueued() {
+      return queued;
+    }
+
+    public long getRunning() {
+      return running;
+    }
+
+    public long getFinished() {
+      return finished;
+    }
+
+    public long getRefs() {
+      return refs;
+    }
+
+    public long getRows() {
+      return rows;
+    }
+
+    public double getRefsPerSecond() {
+      return refs * 1000.0 / elapsedMillis;
+    }
+
+    public double getRowsPerSecond() {
+      return rows * 1000.0 / elapsedMillis;
+    }
+
+    /**
+     * Estimate the remaining time from the average time per finished
+     * project so far.
+     *
+     * @return the estimated remaining time in milliseconds, or -1 if no
+     *         project has finished yet
+     */
+    public long getRemainingMillis() {
+      if (finished == 0) {
+        return isIdle() ? 0 : -1;
+      }
+      return (queued + running) * elapsedMillis / finished;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("Projects: %d queued, %d running, %d finished%n",
+          queued, running, finished));
+      sb.append(String.format("Refs:     %d processed (%.1f/s)%n", refs,
+          getRefsPerSecond()));
+      sb.append(String.format("Rows:     %d written (%.1f/s)%n", rows,
+          getRowsPerSecond()));
+      long remaining = getRemainingMillis();
+      if (remaining < 0) {
+        sb.append("ETA:      unknown");
+      } else {
+        long seconds = TimeUnit.MILLISECONDS.toSeconds(remaining);
+        sb.append(String.format("ETA:      %d:%02d:%02d", seconds / 3600,
+            (seconds / 60) % 60, seconds % 60));
+      }
+      return sb.toString();
+    }
+  }
+}
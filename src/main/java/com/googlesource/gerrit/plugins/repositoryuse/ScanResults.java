@@ -0,0 +1,90 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import org.eclipse.jgit.lib.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Uses found in each commit analysed during a scan of one project.
+ * <p>
+ * Refs pointing to a commit that was already analysed reuse its result
+ * instead of walking the tree again. Only complete analyses (of newly
+ * created or rescanned refs) are recorded.
+ * <p>
+ * The RefStatus of processed refs is collected here as well, so the scan can
+ * store it in batches rather than one transaction per ref.
+ */
+public class ScanResults {
+  /** The uses found in a single commit. */
+  public static class Analysis {
+    private Map<String, String> submodules = Collections.emptyMap();
+    private final Map<String, Map<String, String>> manifests =
+        new HashMap<>();
+
+    void setSubmodules(Map<String, String> submodules) {
+      this.submodules = Collections.unmodifiableMap(new HashMap<>(submodules));
+    }
+
+    void addManifest(String path, Map<String, String> projects) {
+      manifests.put(path,
+          Collections.unmodifiableMap(new HashMap<>(projects)));
+    }
+
+    /** @return the submodules of the commit, by canonical destination */
+    public Map<String, String> getSubmodules() {
+      return submodules;
+    }
+
+    /** @return the projects of each manifest, by manifest path */
+    public Map<String, Map<String, String>> getManifests() {
+      return Collections.unmodifiableMap(manifests);
+    }
+  }
+
+  private final Map<ObjectId, Analysis> analyses = new ConcurrentHashMap<>();
+  private final Queue<Ref> refs = new ConcurrentLinkedQueue<>();
+
+  public Analysis get(ObjectId commit) {
+    return analyses.get(commit);
+  }
+
+  public void put(ObjectId commit, Analysis analysis) {
+    analyses.put(commit.copy(), analysis);
+  }
+
+  /** Queue the RefStatus of a processed ref until the next batch. */
+  public void addRef(Ref ref) {
+    refs.add(ref);
+  }
+
+  /** @return the refs queued since the last call */
+  public List<Ref> drainRefs() {
+    List<Ref> batch = new ArrayList<>();
+    Ref r;
+    while ((r = refs.poll()) != null) {
+      batch.add(r);
+    }
+    return batch;
+  }
+}
@@ -15,4 +15,14 @@
 package com.googlesource.gerrit.plugins.repositoryuse;
 
 public interface ScanTask extends Runnable {
+  /**
+   * Set a callback to run once all refs of this task have been processed.
+   * <p>
+   * Refs may be processed on other threads after {@link #run()} returns, so
+   * this is the only reliable way to learn that the scan has finished.
+   *
+   * @param callback the callback
+   * @return this task
+   */
+  ScanTask whenDone(Runnable callback);
 }
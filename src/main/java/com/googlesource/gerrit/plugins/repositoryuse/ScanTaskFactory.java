@@ -14,6 +14,7 @@
 
 package com.googlesource.gerrit.plugins.repositoryuse;
 
+import com.google.gerrit.common.Nullable;
 import com.google.inject.assistedinject.Assisted;
 
 public interface ScanTaskFactory {
@@ -21,4 +22,14 @@ public interface ScanTaskFactory {
 
   public ScanTask create(@Assisted("project") String project,
       @Assisted("branch") String branch);
+
+  /**
+   * @param project the project to scan
+   * @param branch the branch to scan, or null for all branches and tags
+   * @param incremental skip refs whose commit is already recorded, and
+   *        process the others as an update from the recorded commit
+   */
+  public ScanTask create(@Assisted("project") String project,
+      @Nullable @Assisted("branch") String branch,
+      @Assisted boolean incremental);
 }
@@ -14,51 +14,122 @@
 
 package com.googlesource.gerrit.plugins.repositoryuse;
 
-import com.google.gerrit.extensions.api.projects.BranchInfo;
-import com.google.gerrit.extensions.api.projects.Projects;
-import com.google.gerrit.extensions.api.projects.TagInfo;
-import com.google.gerrit.extensions.restapi.RestApiException;
+import com.google.gerrit.common.Nullable;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.git.GitRepositoryManager;
 import com.google.inject.assistedinject.Assisted;
 import com.google.inject.assistedinject.AssistedInject;
 
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.RefDatabase;
+import org.eclipse.jgit.lib.Repository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Scans all branches and tags of a project.
+ * <p>
+ * The refs of a project are processed by lanes running in parallel on the
+ * scanning pool. All scans of a project share {@code scanThreadsPerProject}
+ * lanes, reserved through the {@link ScanThrottle}. Lanes never wait for each
+ * other, so a project with many refs cannot block the pool; a scan that finds
+ * no free lane is requeued on the pool instead of waiting for one.
+ * <p>
+ * A full scan processes every ref as if it had just been created. An
+ * incremental scan skips refs whose commit matches the one recorded in
+ * RefStatus, and processes the others as an update from the recorded commit.
+ * Either way, refs recorded in RefStatus that no longer exist in the
+ * repository are processed as deletions, so their rows are removed.
+ * <p>
+ * The RefStatus of processed refs is stored in batches of
+ * {@value #REF_BATCH_SIZE}, and once all lanes are done.
+ */
 public class ScanTaskImpl implements ScanTask {
   private static final Logger log =
       LoggerFactory.getLogger(RefUpdateHandlerImpl.class);
+  private static final int REF_BATCH_SIZE = 100;
+  private static final long LANE_RETRY_MILLIS = 500;
 
   private String project;
   private String branch;
+  private boolean incremental;
   private RefUpdateHandlerFactory refUpdateHandlerFactory;
-  private Projects projects;
+  private GitRepositoryManager repoManager;
+  private ProjectNames projectNames;
+  private ScanProgress progress;
+  private ScanThrottle throttle;
+  private ScheduledExecutorService pool;
+  private final AtomicInteger activeLanes = new AtomicInteger();
+  private volatile boolean interrupted;
+  private Runnable callback;
 
   @AssistedInject
   public ScanTaskImpl(@Assisted String project,
       RefUpdateHandlerFactory refUpdateHandlerFactory,
-      Projects projects) {
-    init(project, null, refUpdateHandlerFactory, projects);
+      GitRepositoryManager repoManager, ProjectNames projectNames,
+      ScanProgress progress, ScanThrottle throttle,
+      @ScanningPool ScheduledExecutorService pool) {
+    init(project, null, false, refUpdateHandlerFactory, repoManager,
+        projectNames, progress, throttle, pool);
   }
 
   @AssistedInject
   public ScanTaskImpl(@Assisted("project") String project,
       @Assisted("branch") String branch,
       RefUpdateHandlerFactory refUpdateHandlerFactory,
-      Projects projects) {
-    init(project, branch, refUpdateHandlerFactory, projects);
+      GitRepositoryManager repoManager, ProjectNames projectNames,
+      ScanProgress progress, ScanThrottle throttle,
+      @ScanningPool ScheduledExecutorService pool) {
+    init(project, branch, false, refUpdateHandlerFactory, repoManager,
+        projectNames, progress, throttle, pool);
   }
 
-  private void init(String project, String branch,
+  @AssistedInject
+  public ScanTaskImpl(@Assisted("project") String project,
+      @Nullable @Assisted("branch") String branch,
+      @Assisted boolean incremental,
       RefUpdateHandlerFactory refUpdateHandlerFactory,
-      Projects projects) {
+      GitRepositoryManager repoManager, ProjectNames projectNames,
+      ScanProgress progress, ScanThrottle throttle,
+      @ScanningPool ScheduledExecutorService pool) {
+    init(project, branch, incremental, refUpdateHandlerFactory, repoManager,
+        projectNames, progress, throttle, pool);
+  }
+
+  private void init(String project, String branch, boolean incremental,
+      RefUpdateHandlerFactory refUpdateHandlerFactory,
+      GitRepositoryManager repoManager, ProjectNames projectNames,
+      ScanProgress progress, ScanThrottle throttle,
+      ScheduledExecutorService pool) {
     this.project = project;
     this.branch = branch;
+    this.incremental = incremental;
     this.refUpdateHandlerFactory = refUpdateHandlerFactory;
-    this.projects = projects;
+    this.repoManager = repoManager;
+    this.projectNames = projectNames;
+    this.progress = progress;
+    this.throttle = throttle;
+    this.pool = pool;
+  }
+
+  @Override
+  public ScanTask whenDone(Runnable callback) {
+    this.callback = callback;
+    return this;
   }
 
   @Override
@@ -72,46 +143,201 @@ public class ScanTaskImpl implements ScanTask {
 
   @Override
   public void run() {
-    try {
-      List<BranchInfo> branches = projects.name(project).branches().get();
+    Queue<RefUpdate> refs = new ConcurrentLinkedQueue<>();
+    Map<String, String> recorded = new HashMap<>();
+    for (Ref r : Ref.fetchByProject(
+        projectNames.getCanonicalProject(project))) {
+      recorded.put(r.getRef(), r.getCommit());
+    }
+    Set<String> live = new HashSet<>();
+
+    if (branch != null && !branch.startsWith(Constants.R_HEADS)) {
+      branch = Constants.R_HEADS + branch;
+    }
+
+    // Read the refs straight from the repository rather than through the
+    // REST API, which would build (and for tags, peel) an info object and
+    // check permissions for every ref.
+    try (Repository repo =
+        repoManager.openRepository(new Project.NameKey(project))) {
+      RefDatabase refDb = repo.getRefDatabase();
+      if (branch != null) {
+        addRef(refs, recorded, live, refDb.exactRef(branch));
+      } else {
+        for (org.eclipse.jgit.lib.Ref r : refDb.getRefs(Constants.R_HEADS)
+            .values()) {
+          addRef(refs, recorded, live, r);
+        }
+      }
+      for (org.eclipse.jgit.lib.Ref r : refDb.getRefs(Constants.R_TAGS)
+          .values()) {
+        addRef(refs, recorded, live, r);
+      }
+    } catch (IOException e) {
+      log.error(String.format("Unable to read refs of %s", project), e);
+      done();
+      return;
+    }
 
-      if (branch != null && !branch.startsWith(Constants.R_HEADS)) {
-        branch = Constants.R_HEADS + branch;
+    // Refs deleted while their update was not processed, e.g. because the
+    // update queue was full, are still recorded.
+    for (Map.Entry<String, String> r : recorded.entrySet()) {
+      String ref = r.getKey();
+      if (!live.contains(ref) && isScanned(ref)) {
+        refs.add(new RefUpdate(project, ref, r.getValue(),
+            ObjectId.zeroId().name()));
       }
+    }
 
-      for (BranchInfo currentBranch : branches) {
-        // Create with a "new" base commit to rescan entire branch
-        if (branch == null || branch == currentBranch.ref) {
-          RefUpdate rescan = new RefUpdate(project, currentBranch.ref,
-              ObjectId.zeroId().getName(), currentBranch.revision);
-          try {
-            refUpdateHandlerFactory.create(rescan).run();
-          } catch (Exception e) {
-            log.error(String.format("Error updating %s branch %s: %s", project,
-                currentBranch.ref, e.getMessage()), e);
+    if (refs.isEmpty()) {
+      done();
+      return;
+    }
+
+    startLanes(refs);
+  }
+
+  private void startLanes(final Queue<RefUpdate> refs) {
+    int lanes = throttle.acquireLanes(project,
+        pool != null ? refs.size() : 1);
+    if (lanes == 0) {
+      // All lanes of the project are busy with other scans. Try again
+      // later rather than parking a thread of the scanning pool.
+      if (pool == null) {
+        stopped();
+        return;
+      }
+      try {
+        pool.schedule(new Runnable() {
+          @Override
+          public void run() {
+            startLanes(refs);
           }
+
+          @Override
+          public String toString() {
+            return ScanTaskImpl.this.toString();
+          }
+        }, LANE_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        stopped();
+      }
+      return;
+    }
+
+    ScanResults results = new ScanResults();
+    activeLanes.set(lanes);
+    for (int i = 1; i < lanes; i++) {
+      try {
+        pool.execute(new Lane(refs, results));
+      } catch (RejectedExecutionException e) {
+        // The pool is shutting down; the lanes already running, including
+        // the one below, finish the refs.
+        for (int j = i; j < lanes; j++) {
+          throttle.releaseLane(project);
+          activeLanes.decrementAndGet();
         }
+        break;
       }
-    } catch (RestApiException e) {
-      log.error(e.getMessage(), e);
     }
+    // This task already holds a pool thread; use it as the first lane.
+    new Lane(refs, results).run();
+  }
+
+  private void stopped() {
+    // Not reported as done, so a persisted job scans the project again
+    log.warn(String.format("Scan of %s stopped", project));
+    interrupted = true;
+  }
+
+  private void addRef(Queue<RefUpdate> refs, Map<String, String> recorded,
+      Set<String> live, org.eclipse.jgit.lib.Ref r) {
+    if (r == null || r.isSymbolic() || r.getObjectId() == null) {
+      return;
+    }
+    String ref = r.getName();
+    live.add(ref);
+    String revision = r.getObjectId().name();
+    String oldRevision = incremental ? recorded.get(ref) : null;
+    if (oldRevision == null) {
+      // Create with a "new" base commit to rescan entire ref
+      oldRevision = ObjectId.zeroId().getName();
+    } else if (oldRevision.equals(revision)) {
+      log.debug(String.format("Skipping unchanged %s ref %s", project, ref));
+      progress.refSkipped();
+      return;
+    }
+    refs.add(new RefUpdate(project, ref, oldRevision, revision));
+  }
 
-    try {
-      List<TagInfo> tags = projects.name(project).tags().get();
+  /** @return true if this scan covers the ref */
+  private boolean isScanned(String ref) {
+    if (ref.startsWith(Constants.R_TAGS)) {
+      return true;
+    }
+    return branch != null ? ref.equals(branch)
+        : ref.startsWith(Constants.R_HEADS);
+  }
 
-      for (TagInfo currentTag : tags) {
-        RefUpdate rescan = new RefUpdate(project, currentTag.ref,
-            ObjectId.zeroId().getName(), currentTag.revision);
-        try {
-          refUpdateHandlerFactory.create(rescan).run();
-        } catch (Exception e) {
-          log.error(String.format("Error updating %s tag %s: %s", project,
-              currentTag.ref, e.getMessage()), e);
+  private static void saveRefs(ScanResults results) {
+    List<Ref> batch = results.drainRefs();
+    if (!batch.isEmpty()) {
+      Ref.saveAll(batch);
+    }
+  }
+
+  private void done() {
+    if (callback != null && !interrupted) {
+      callback.run();
+    }
+  }
+
+  private class Lane implements Runnable {
+    private final Queue<RefUpdate> refs;
+    private final ScanResults results;
+
+    Lane(Queue<RefUpdate> refs, ScanResults results) {
+      this.refs = refs;
+      this.results = results;
+    }
+
+    @Override
+    public void run() {
+      try {
+        int processed = 0;
+        RefUpdate rescan;
+        while ((rescan = refs.poll()) != null) {
+          // Live updates go first; a scan only catches up on history
+          throttle.acquire();
+          try {
+            refUpdateHandlerFactory.create(rescan, results).run();
+          } catch (Exception e) {
+            log.error(String.format("Error updating %s ref %s: %s", project,
+                rescan.getRefName(), e.getMessage()), e);
+          }
+          progress.refProcessed();
+          if (++processed % REF_BATCH_SIZE == 0) {
+            saveRefs(results);
+          }
+        }
+      } catch (InterruptedException e) {
+        // Not reported as done, so a persisted job scans the project again
+        log.warn(String.format("Scan of %s interrupted", project));
+        interrupted = true;
+        Thread.currentThread().interrupt();
+      } finally {
+        throttle.releaseLane(project);
+        if (activeLanes.decrementAndGet() == 0) {
+          // Processed refs are recorded even if the scan was interrupted
+          saveRefs(results);
+          done();
         }
       }
-    } catch (RestApiException e) {
-      log.error(e.getMessage(), e);
     }
-  }
 
+    @Override
+    public String toString() {
+      return ScanTaskImpl.this.toString();
+    }
+  }
 }
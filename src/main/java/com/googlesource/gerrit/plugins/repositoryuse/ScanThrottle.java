@@ -0,0 +1,102 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Keeps background scans from competing with live ref updates.
+ * <p>
+ * Before each ref, a scan yields to live updates waiting in the update
+ * queue for at most {@code scanMaxYield} milliseconds, so that a steady
+ * stream of pushes slows scans down rather than stopping them, and then waits
+ * for a permit of the {@code scanRateLimit} (refs per second, unlimited if not
+ * positive). Scans proceed immediately while no update is waiting.
+ * <p>
+ * All scans of a project together run at most {@code scanThreadsPerProject}
+ * lanes, however many scan tasks were queued for it.
+ */
+@Singleton
+public class ScanThrottle {
+  private final RefUpdateQueue refUpdateQueue;
+  private final long maxYield;
+  private final RateLimiter limiter;
+  private final ConcurrentMap<String, Semaphore> lanes =
+      new ConcurrentHashMap<>();
+
+  @Inject
+  public ScanThrottle(RefUpdateQueue refUpdateQueue) {
+    this.refUpdateQueue = refUpdateQueue;
+    this.maxYield = Config.getScanMaxYield();
+    int limit = Config.getScanRateLimit();
+    this.limiter = limit > 0 ? RateLimiter.create(limit) : null;
+  }
+
+  /**
+   * Wait until the next ref of a background scan may be processed.
+   *
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public void acquire() throws InterruptedException {
+    if (maxYield > 0) {
+      refUpdateQueue.awaitNoPending(maxYield);
+    }
+    if (limiter != null) {
+      limiter.acquire();
+    }
+  }
+
+  /**
+   * Reserve the free lanes to scan a project with, without waiting. Each lane
+   * must be given back with {@link #releaseLane(String)}.
+   *
+   * @param project the project to scan
+   * @param wanted the number of lanes the scan could use
+   * @return the number of lanes reserved, between 0 (none is free) and
+   *     {@code wanted}
+   */
+  public int acquireLanes(String project, int wanted) {
+    Semaphore s = getLanes(project);
+    int acquired = 0;
+    while (acquired < wanted && s.tryAcquire()) {
+      acquired++;
+    }
+    return acquired;
+  }
+
+  /** Give back a lane reserved by {@link #acquireLanes(String, int)}. */
+  public void releaseLane(String project) {
+    getLanes(project).release();
+  }
+
+  private Semaphore getLanes(String project) {
+    Semaphore s = lanes.get(project);
+    if (s == null) {
+      Semaphore created =
+          new Semaphore(Math.max(1, Config.getScanThreadsPerProject()));
+      s = lanes.putIfAbsent(project, created);
+      if (s == null) {
+        s = created;
+      }
+    }
+    return s;
+  }
+}
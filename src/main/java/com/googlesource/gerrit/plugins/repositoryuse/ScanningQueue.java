@@ -32,7 +32,8 @@ public class ScanningQueue implements LifecycleListener {
 
   @Override
   public void start() {
-    threadPool = queue.createQueue(1, "(Repository-Usage)");
+    threadPool = queue.createQueue(Math.max(1, Config.getScanThreads()),
+        "(Repository-Usage)");
   }
 
   @Override
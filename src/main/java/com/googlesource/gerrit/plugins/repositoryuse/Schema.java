@@ -0,0 +1,112 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.inject.Inject;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Tracks the schema version of each table and applies pending migrations.
+ */
+class Schema {
+  private static final Logger log = LoggerFactory.getLogger(Schema.class);
+  private static final String TABLE_NAME = "RepoUsageSchema";
+  private static final String COMPONENT = "component";
+  private static final String VERSION = "version";
+  @Inject
+  private static SQLDriver sql;
+
+  private static boolean tableCreated = false;
+
+  private Schema() {
+  }
+
+  /**
+   * Apply all migrations that have not yet been applied to a table.
+   * <p>
+   * Migrations are identified by their position in the list, so existing
+   * entries must never be reordered or removed; new migrations are appended.
+   *
+   * @param component the table the migrations belong to
+   * @param migrations the statements bringing the table to the latest version
+   */
+  static synchronized void upgrade(String component, String... migrations) {
+    createTable();
+    int version = getVersion(component);
+    for (int i = version; i < migrations.length; i++) {
+      try {
+        log.info(String.format("Migrating %s to schema version %d", component,
+            i + 1));
+        sql.execute(migrations[i]);
+        setVersion(component, i + 1);
+      } catch (SQLException e) {
+        log.error(String.format("Unable to migrate %s to schema version %d",
+            component, i + 1), e);
+        return;
+      }
+    }
+  }
+
+  private static void createTable() {
+    if (tableCreated) {
+      return;
+    }
+    StringBuilder query = new StringBuilder();
+    query.append(String.format("CREATE TABLE IF NOT EXISTS %s(", TABLE_NAME));
+    query.append(String.format("%s VARCHAR(255),", COMPONENT));
+    query.append(String.format("%s INTEGER,", VERSION));
+    query.append(String.format("PRIMARY KEY (%s))", COMPONENT));
+    try {
+      sql.execute(query.toString());
+      tableCreated = true;
+    } catch (SQLException e) {
+      log.error("Unable to create Schema table", e);
+    }
+  }
+
+  private static int getVersion(String component) {
+    String query = "SELECT " + VERSION + " FROM " + TABLE_NAME + " WHERE "
+        + COMPONENT + "=?";
+    try {
+      List<Integer> rows = sql.fetch(query,
+          new SQLDriver.RowMapper<Integer>() {
+            @Override
+            public Integer map(ResultSet r) throws SQLException {
+              return r.getInt(VERSION);
+            }
+          }, component);
+      if (!rows.isEmpty()) {
+        return rows.get(0);
+      }
+    } catch (SQLException e) {
+      log.error("Unable to read schema version of " + component, e);
+    }
+    return 0;
+  }
+
+  private static void setVersion(String component, int version)
+      throws SQLException {
+    String query = sql.getUpsertQuery(TABLE_NAME, new String[] {COMPONENT},
+        new String[] {COMPONENT, VERSION},
+        new String[] {"?", "?"});
+    sql.execute(query, component, version);
+  }
+}
@@ -0,0 +1,121 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import com.google.gerrit.extensions.restapi.BadRequestException;
+import com.google.gerrit.extensions.restapi.RestReadView;
+import com.google.gerrit.reviewdb.client.Project;
+import com.google.gerrit.server.CurrentUser;
+import com.google.gerrit.server.project.ProjectCache;
+import com.google.gerrit.server.project.ProjectResource;
+import com.google.gerrit.server.project.ProjectState;
+
+import org.kohsuke.args4j.Option;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Options shared by the REST views walking the {@link DependencyGraph}.
+ * <p>
+ * Only projects the caller can see are listed or walked through. Projects
+ * hosted elsewhere, which are only known by name, are always listed.
+ */
+abstract class TraversalView implements RestReadView<ProjectResource> {
+  private final DependencyGraph graph;
+  private final ProjectNames projectNames;
+  private final ProjectCache projectCache;
+  private final List<String> branches = new ArrayList<>();
+
+  @Option(name = "--transitive", usage = "also follow indirect uses")
+  private boolean transitive;
+
+  @Option(name = "--depth", metaVar = "DEPTH",
+      usage = "follow at most DEPTH uses from the project")
+  private Integer depth;
+
+  @Option(name = "--limit", metaVar = "COUNT",
+      usage = "follow at most COUNT uses of each project")
+  private Integer limit;
+
+  @Option(name = "--branch", metaVar = "BRANCH",
+      usage = "only follow uses from this branch of the using projects")
+  void addBranch(String branch) {
+    branches.add(branch);
+  }
+
+  TraversalView(DependencyGraph graph, ProjectNames projectNames,
+      ProjectCache projectCache) {
+    this.graph = graph;
+    this.projectNames = projectNames;
+    this.projectCache = projectCache;
+  }
+
+  /**
+   * @param rsrc the project to start from
+   * @param reverse true to walk to users, false to walk to dependencies
+   * @param defaultTransitive whether to follow indirect uses if neither
+   *        --transitive nor --depth was given
+   */
+  protected DependencyGraph.Result traverse(ProjectResource rsrc,
+      boolean reverse, boolean defaultTransitive) throws BadRequestException {
+    if (depth != null && depth < 1) {
+      throw new BadRequestException("depth must be positive");
+    }
+    if (limit != null && limit < 1) {
+      throw new BadRequestException("limit must be positive");
+    }
+    DependencyGraph.Query query = new DependencyGraph.Query(
+        projectNames.getCanonicalProject(rsrc.getName()), reverse);
+    if (depth != null) {
+      query.setMaxDepth(depth);
+    } else if (!transitive && !defaultTransitive) {
+      query.setMaxDepth(1);
+    }
+    if (limit != null) {
+      query.setMaxFanOut(limit);
+    }
+    query.setBranches(branches);
+    return graph.traverse(query, visibleTo(rsrc.getControl().getUser()));
+  }
+
+  private DependencyGraph.Visibility visibleTo(final CurrentUser user) {
+    return new DependencyGraph.Visibility() {
+      // The same projects are checked again for every use reaching them
+      private final Map<String, Boolean> visible = new HashMap<>();
+
+      @Override
+      public boolean isVisible(String project) {
+        Boolean result = visible.get(project);
+        if (result == null) {
+          result = canSee(user, project);
+          visible.put(project, result);
+        }
+        return result;
+      }
+    };
+  }
+
+  private boolean canSee(CurrentUser user, String canonicalProject) {
+    String name = projectNames.getLocalProject(canonicalProject);
+    if (name == null) {
+      return true;
+    }
+    ProjectState state = projectCache.get(new Project.NameKey(name));
+    return state != null && state.controlFor(user).isVisible();
+  }
+}
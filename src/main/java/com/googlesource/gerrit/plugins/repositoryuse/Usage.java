@@ -14,17 +14,18 @@
 
 package com.googlesource.gerrit.plugins.repositoryuse;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.inject.Inject;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
-import java.util.Map;
 
 public class Usage {
   private static final Logger log = LoggerFactory.getLogger(Usage.class);
@@ -107,6 +108,24 @@ public class Usage {
     table.delete(this);
   }
 
+  /**
+   * Store a set of changes to the usage table in a single transaction.
+   *
+   * @param saved uses that should be inserted or updated
+   * @param deleted uses that should be removed
+   * @return false if the changes could not be stored
+   */
+  public static boolean update(Collection<Usage> saved,
+      Collection<Usage> deleted) {
+    Date now = new Date();
+    for (Usage u : saved) {
+      u.lastUpdated = now;
+    }
+    log.debug(String.format("Saving Usage batch: %d saved, %d deleted",
+        saved.size(), deleted.size()));
+    return table.update(saved, deleted);
+  }
+
   public static List<Usage> fetchByProject(String project) {
     return table.fetchByProject(project);
   }
@@ -119,6 +138,21 @@ public class Usage {
     return table.fetchByDependency(dependency);
   }
 
+  /**
+   * Pass every use to a handler as it is read from the database.
+   *
+   * @param handler receives each use
+   */
+  public static void forEach(SQLDriver.RowHandler<Usage> handler) {
+    table.forEach(handler);
+  }
+
+  /**
+   * Remove all uses of a branch, including those found in its manifests.
+   *
+   * @param project canonical name of the using project
+   * @param branch the branch that was deleted
+   */
   public static void deleteByBranch(String project, String branch) {
     log.debug(String.format("Deleting all uses: %s, %s", project, branch));
     table.deleteByBranch(project, branch);
@@ -132,12 +166,31 @@ public class Usage {
     private static final String REF = "ref";
     private static final String INFO = "info";
     private static final String DATE = "last_update";
+    // Append only; see Schema.upgrade
+    private static final String[] MIGRATIONS = {
+        // Reverse dependency lookups (fetchByDependency) filter on
+        // destination; the composite index also serves destination alone.
+        String.format("CREATE INDEX IF NOT EXISTS %s_%s_%s ON %s(%s, %s)",
+            TABLE_NAME, DESTINATION, REF, TABLE_NAME, DESTINATION, REF),
+    };
+    private static final SQLDriver.RowMapper<Usage> ROW_MAPPER =
+        new SQLDriver.RowMapper<Usage>() {
+          @Override
+          public Usage map(ResultSet r) throws SQLException {
+            return new Usage(r.getString(PROJECT), r.getString(BRANCH),
+                r.getString(DESTINATION), r.getString(REF), r.getString(INFO),
+                r.getTimestamp(DATE));
+          }
+        };
     @Inject
     private static SQLDriver sql;
+    @Inject
+    private static DependencyGraph graph;
 
     public Table() {
       // Create the table if it doesn't exist
       createTable();
+      Schema.upgrade(TABLE_NAME, MIGRATIONS);
     }
 
     private void createTable() {
@@ -159,58 +212,83 @@ public class Usage {
     }
 
     public void insertOrUpdate(Usage u) {
-      if (fetchByProject(u.getProject(), u.getBranch(), u.getDestination())
-          .isEmpty()) {
-        String query = "INSERT INTO " + TABLE_NAME + "(" + PROJECT + ", "
-            + BRANCH + ", " + DESTINATION + ", " + REF + ", " + INFO + ", "
-            + DATE + ") VALUES (?, ?, ?, ?, ?, " + sql.getDateFormat() + ")";
-        try {
-          sql.execute(query, u.getProject(), u.getBranch(), u.getDestination(),
-              u.getRef(), u.getInfo(), sql.getDateAsString(u.getLastUpdated()));
-        } catch (SQLException e) {
-          log.error("Unable to insert usage", e);
-        }
-      } else {
-        String query = "UPDATE " + TABLE_NAME + " SET " + REF + "=?, " + INFO
-            + "=?, " + DATE + "=" + sql.getDateFormat() + " WHERE " + PROJECT
-            + "=? AND " + BRANCH + "=? AND " + DESTINATION + "=?";
-        try {
-          sql.execute(query, u.getRef(), u.getInfo(),
-              sql.getDateAsString(u.getLastUpdated()), u.getProject(),
-              u.getBranch(), u.getDestination());
-        } catch (SQLException e) {
-          log.error("Unable to update usage", e);
-        }
+      try {
+        sql.execute(getUpsertQuery(), getUpsertParameters(u));
+        graph.update(Collections.singleton(u), Collections.<Usage> emptySet());
+      } catch (SQLException e) {
+        log.error("Unable to save usage", e);
+      }
+    }
+
+    public boolean update(Collection<Usage> saved, Collection<Usage> deleted) {
+      SQLDriver.Batch batch = new SQLDriver.Batch();
+      for (Usage u : deleted) {
+        batch.add(getDeleteQuery(), u.getProject(), u.getBranch(),
+            u.getDestination());
+      }
+      for (Usage u : saved) {
+        batch.add(getUpsertQuery(), getUpsertParameters(u));
+      }
+      try {
+        sql.execute(batch);
+        graph.update(saved, deleted);
+        return true;
+      } catch (SQLException e) {
+        log.error("Unable to update usage", e);
+        return false;
       }
     }
 
     public void delete(Usage u) {
-      String query = "DELETE FROM " + TABLE_NAME + " WHERE " + PROJECT
-          + "=? AND " + BRANCH + "=? AND " + DESTINATION + "=?";
       try {
-        sql.execute(query, u.getProject(), u.getBranch(), u.getDestination());
+        sql.execute(getDeleteQuery(), u.getProject(), u.getBranch(),
+            u.getDestination());
+        graph.update(Collections.<Usage> emptySet(), Collections.singleton(u));
       } catch (SQLException e) {
         log.error("Unable to delete usage", e);
       }
     }
 
+    private String getUpsertQuery() {
+      return sql.getUpsertQuery(TABLE_NAME,
+          new String[] {PROJECT, BRANCH, DESTINATION},
+          new String[] {PROJECT, BRANCH, DESTINATION, REF, INFO, DATE},
+          new String[] {"?", "?", "?", "?", "?", "?"});
+    }
+
+    private Object[] getUpsertParameters(Usage u) {
+      return new Object[] {u.getProject(), u.getBranch(), u.getDestination(),
+          u.getRef(), u.getInfo(), u.getLastUpdated()};
+    }
+
+    private String getDeleteQuery() {
+      return "DELETE FROM " + TABLE_NAME + " WHERE " + PROJECT + "=? AND "
+          + BRANCH + "=? AND " + DESTINATION + "=?";
+    }
+
     public void deleteByBranch(String project, String branch) {
-      String query = "DELETE FROM " + TABLE_NAME + " WHERE " + PROJECT
-          + "=? AND " + BRANCH + "=?";
+      // Uses found in manifests are stored as project:path
+      String query = "DELETE FROM " + TABLE_NAME + " WHERE " + BRANCH
+          + "=? AND (" + PROJECT + "=? OR " + PROJECT + " LIKE ? ESCAPE '\\')";
       try {
-        sql.execute(query, project, branch);
+        sql.execute(query, branch, project, escapeLike(project) + ":%");
+        graph.deleteByBranch(project, branch);
       } catch (SQLException e) {
         log.error("Unable to delete usage", e);
       }
     }
 
+    private static String escapeLike(String value) {
+      return value.replace("\\", "\\\\").replace("%", "\\%")
+          .replace("_", "\\_");
+    }
+
     public List<Usage> fetchByProject(String project) {
       String query = "SELECT " + PROJECT + ", " + BRANCH + ", " + DESTINATION
           + ", " + REF + ", " + INFO + ", " + DATE + " FROM " + TABLE_NAME
           + " WHERE " + PROJECT + "=?";
       try {
-        return loadUsage(sql.fetchRows(query, project));
-
+        return sql.fetch(query, ROW_MAPPER, project);
       } catch (SQLException e) {
         log.error("Unable to execute query", e);
       }
@@ -222,8 +300,7 @@ public class Usage {
           + ", " + REF + ", " + INFO + ", " + DATE + " FROM " + TABLE_NAME
           + " WHERE " + PROJECT + "=? AND " + BRANCH + "=?";
       try {
-        return loadUsage(sql.fetchRows(query, project, branch));
-
+        return sql.fetch(query, ROW_MAPPER, project, branch);
       } catch (SQLException e) {
         log.error("Unable to execute query", e);
       }
@@ -237,36 +314,37 @@ public class Usage {
               + ", " + INFO + ", " + DATE + " FROM " + TABLE_NAME + " WHERE "
               + PROJECT + "=? AND " + BRANCH + "=? AND " + DESTINATION + "=?";
       try {
-        return loadUsage(sql.fetchRows(query, project, branch, destination));
-
+        return sql.fetch(query, ROW_MAPPER, project, branch, destination);
       } catch (SQLException e) {
         log.error("Unable to execute query", e);
       }
       return Collections.emptyList();
     }
 
+    @VisibleForTesting
+    static String getDependencyQuery() {
+      return "SELECT " + PROJECT + ", " + BRANCH + ", " + DESTINATION + ", "
+          + REF + ", " + INFO + ", " + DATE + " FROM " + TABLE_NAME + " WHERE "
+          + DESTINATION + "=?";
+    }
+
     public List<Usage> fetchByDependency(String dependency) {
-      String query = "SELECT " + PROJECT + ", " + BRANCH + ", " + DESTINATION
-          + ", " + REF + ", " + INFO + ", " + DATE + " FROM " + TABLE_NAME
-          + " WHERE " + DESTINATION + "=?";
       try {
-        return loadUsage(sql.fetchRows(query, dependency));
-
+        return sql.fetch(getDependencyQuery(), ROW_MAPPER, dependency);
       } catch (SQLException e) {
         log.error("Unable to execute query", e);
       }
       return Collections.emptyList();
     }
 
-    private List<Usage> loadUsage(List<Map<String, String>> rows) {
-      List<Usage> result = new ArrayList<>();
-      for (Map<String, String> row : rows) {
-        Usage tmp = new Usage(row.get(PROJECT), row.get(BRANCH),
-            row.get(DESTINATION), row.get(REF), row.get(INFO),
-            sql.getStringAsDate(row.get(DATE)));
-        result.add(tmp);
+    public void forEach(SQLDriver.RowHandler<Usage> handler) {
+      String query = "SELECT " + PROJECT + ", " + BRANCH + ", " + DESTINATION
+          + ", " + REF + ", " + INFO + ", " + DATE + " FROM " + TABLE_NAME;
+      try {
+        sql.forEach(query, ROW_MAPPER, handler);
+      } catch (SQLException e) {
+        log.error("Unable to execute query", e);
       }
-      return result;
     }
   }
 }
@@ -0,0 +1,31 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+/** A use of one project by another, as returned by the REST API. */
+public class UsageInfo {
+  /** The project at the other end of the use. */
+  public String project;
+  /** The manifest the use was found in, null for submodules. */
+  public String manifest;
+  /** The branch of the using project. */
+  public String branch;
+  /** The revision or branch of the used project. */
+  public String ref;
+  /** Number of uses between the queried project and this one. */
+  public int depth;
+  /** True if the use leads back to a project it was reached from. */
+  public Boolean cycle;
+}
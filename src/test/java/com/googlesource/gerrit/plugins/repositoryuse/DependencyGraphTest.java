@@ -0,0 +1,258 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableSet;
+
+import com.googlesource.gerrit.plugins.repositoryuse.DependencyGraph.Query;
+import com.googlesource.gerrit.plugins.repositoryuse.DependencyGraph.Result;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+public class DependencyGraphTest {
+  private static final String A = "host/a";
+  private static final String B = "host/b";
+  private static final String C = "host/c";
+  private static final String D = "host/d";
+  private static final String MASTER = "refs/heads/master";
+  private static final String DEV = "refs/heads/dev";
+
+  private DependencyGraph graph;
+
+  @Before
+  public void setUp() {
+    graph = new DependencyGraph(16);
+  }
+
+  @Test
+  public void directUsesInBothDirections() {
+    graph.add(A, MASTER, B, "sha1");
+    assertThat(projects(graph.getDependencies(A))).containsExactly(B);
+    assertThat(projects(graph.getUsers(B))).containsExactly(A);
+    assertThat(graph.getUsers(A)).isEmpty();
+    assertThat(graph.getDependencies("host/unknown")).isEmpty();
+
+    UsageInfo use = graph.getDependencies(A).get(0);
+    assertThat(use.branch).isEqualTo(MASTER);
+    assertThat(use.ref).isEqualTo("sha1");
+    assertThat(use.manifest).isNull();
+    assertThat(use.depth).isEqualTo(1);
+    assertThat(use.cycle).isNull();
+  }
+
+  @Test
+  public void maxDepth() {
+    chain(A, B, C, D);
+    Result r = graph.traverse(new Query(A, false).setMaxDepth(2));
+    assertThat(projects(r.getUses())).containsExactly(B, C).inOrder();
+    assertThat(r.isTruncated()).isTrue();
+
+    r = graph.traverse(new Query(A, false).setMaxDepth(3));
+    assertThat(projects(r.getUses())).containsExactly(B, C, D).inOrder();
+    assertThat(r.getUses().get(2).depth).isEqualTo(3);
+    assertThat(r.isTruncated()).isFalse();
+
+    r = graph.traverse(new Query(D, true));
+    assertThat(projects(r.getUses())).containsExactly(C, B, A).inOrder();
+    assertThat(r.isTruncated()).isFalse();
+  }
+
+  @Test
+  public void maxFanOut() {
+    graph.add(A, MASTER, B, "1");
+    graph.add(A, MASTER, C, "1");
+    graph.add(A, MASTER, D, "1");
+    Result r = graph.traverse(new Query(A, false).setMaxFanOut(2));
+    assertThat(r.getUses()).hasSize(2);
+    assertThat(r.isTruncated()).isTrue();
+
+    r = graph.traverse(new Query(A, false).setMaxFanOut(3));
+    assertThat(r.getUses()).hasSize(3);
+    assertThat(r.isTruncated()).isFalse();
+  }
+
+  @Test
+  public void branches() {
+    graph.add(A, MASTER, B, "1");
+    graph.add(A, DEV, C, "1");
+    Set<String> master = ImmutableSet.of(MASTER);
+    assertThat(projects(graph.traverse(
+        new Query(A, false).setBranches(master)).getUses()))
+        .containsExactly(B);
+    assertThat(projects(graph.traverse(
+        new Query(C, true).setBranches(master)).getUses()))
+        .isEmpty();
+    assertThat(projects(graph.traverse(
+        new Query(A, false).setBranches(ImmutableSet.of("refs/heads/x")))
+        .getUses())).isEmpty();
+  }
+
+  @Test
+  public void cycles() {
+    chain(A, B, C, A);
+    List<UsageInfo> uses = graph.traverse(new Query(A, false)).getUses();
+    assertThat(projects(uses)).containsExactly(B, C, A).inOrder();
+    assertThat(uses.get(0).cycle).isNull();
+    assertThat(uses.get(2).cycle).isTrue();
+    assertThat(uses.get(2).depth).isEqualTo(3);
+  }
+
+  @Test
+  public void sharedDependencyIsNotACycle() {
+    graph.add(A, MASTER, B, "1");
+    graph.add(A, MASTER, C, "1");
+    graph.add(B, MASTER, D, "1");
+    graph.add(C, MASTER, D, "1");
+    List<UsageInfo> uses = graph.traverse(new Query(A, false)).getUses();
+    assertThat(uses).hasSize(4);
+    for (UsageInfo u : uses) {
+      assertThat(u.cycle).isNull();
+    }
+  }
+
+  @Test
+  public void manifestUsesReachUsersOfTheManifestProject() {
+    graph.add(A + ":default.xml", MASTER, B, "master");
+    graph.add(C, MASTER, A, "1");
+    List<UsageInfo> uses = graph.traverse(new Query(B, true)).getUses();
+    assertThat(projects(uses)).containsExactly(A, C).inOrder();
+    assertThat(uses.get(0).manifest).isEqualTo("default.xml");
+    assertThat(uses.get(1).manifest).isNull();
+  }
+
+  @Test
+  public void deleteByBranchRemovesManifestUses() {
+    graph.add(A, MASTER, B, "1");
+    graph.add(A + ":default.xml", MASTER, C, "master");
+    graph.add(A, DEV, D, "1");
+    graph.deleteByBranch(A, MASTER);
+    assertThat(projects(graph.getDependencies(A))).containsExactly(D);
+    assertThat(graph.getUsers(C)).isEmpty();
+  }
+
+  @Test
+  public void changesInvalidateAffectedResults() {
+    chain(A, B, C);
+    Query forward = new Query(A, false);
+    Query reverse = new Query(C, true);
+    Result before = graph.traverse(forward);
+    Result users = graph.traverse(reverse);
+    assertThat(graph.traverse(forward)).isSameAs(before);
+
+    // Not reachable from A, and not leading to C
+    graph.add(D, MASTER, A, "1");
+    assertThat(graph.traverse(forward)).isSameAs(before);
+    assertThat(graph.traverse(reverse)).isNotSameAs(users);
+
+    graph.add(B, MASTER, D, "1");
+    assertThat(projects(graph.traverse(forward).getUses()))
+        .containsExactly(B, C, D, A);
+
+    graph.deleteByBranch(B, MASTER);
+    assertThat(projects(graph.traverse(forward).getUses()))
+        .containsExactly(B);
+  }
+
+  @Test
+  public void resultsAreCopied() {
+    graph.add(A, MASTER, B, "1");
+    Query q = new Query(A, false);
+    graph.traverse(q).getUses().get(0).project = "changed";
+    assertThat(projects(graph.traverse(q).getUses())).containsExactly(B);
+  }
+
+  @Test
+  public void hiddenProjectsAreNotReached() {
+    graph.add(A, MASTER, B, "1");
+    graph.add(A, MASTER, C, "1");
+    graph.add(B, MASTER, D, "1");
+    DependencyGraph.Visibility hideB = new DependencyGraph.Visibility() {
+      @Override
+      public boolean isVisible(String project) {
+        return !project.equals(B);
+      }
+    };
+    Result r = graph.traverse(new Query(A, false), hideB);
+    assertThat(projects(r.getUses())).containsExactly(C);
+
+    // Hidden uses do not count towards the fan-out limit
+    r = graph.traverse(new Query(A, false).setMaxFanOut(1), hideB);
+    assertThat(projects(r.getUses())).containsExactly(C);
+    assertThat(r.isTruncated()).isFalse();
+  }
+
+  @Test
+  public void filteredUsesBeyondMaxDepthAreNotTruncated() {
+    graph.add(A, MASTER, B, "1");
+    graph.add(B, DEV, C, "1");
+    graph.add(B, MASTER, D, "1");
+    Query q = new Query(A, false).setMaxDepth(1)
+        .setBranches(ImmutableSet.of(MASTER));
+    assertThat(graph.traverse(q).isTruncated()).isTrue();
+
+    DependencyGraph.Visibility hideD = new DependencyGraph.Visibility() {
+      @Override
+      public boolean isVisible(String project) {
+        return !project.equals(D);
+      }
+    };
+    Result r = graph.traverse(q, hideD);
+    assertThat(projects(r.getUses())).containsExactly(B);
+    assertThat(r.isTruncated()).isFalse();
+  }
+
+  @Test
+  public void projectWithManyUses() {
+    int n = 50;
+    for (int i = 0; i < n; i++) {
+      graph.add(A, "refs/heads/b" + i, "host/p" + i, "1");
+    }
+    graph.add(A, "refs/heads/b7", "host/p7", "2");
+    for (int i = 0; i < n; i += 2) {
+      graph.deleteByBranch(A, "refs/heads/b" + i);
+    }
+    graph.add(A, "refs/heads/b9", "host/p9", "3");
+
+    List<UsageInfo> uses = graph.getDependencies(A);
+    assertThat(uses).hasSize(n / 2);
+    for (UsageInfo u : uses) {
+      int i = Integer.parseInt(u.project.substring("host/p".length()));
+      assertThat(i % 2).isEqualTo(1);
+      assertThat(u.branch).isEqualTo("refs/heads/b" + i);
+      assertThat(u.ref).isEqualTo(i == 7 ? "2" : i == 9 ? "3" : "1");
+    }
+  }
+
+  private void chain(String... projects) {
+    for (int i = 1; i < projects.length; i++) {
+      graph.add(projects[i - 1], MASTER, projects[i], "1");
+    }
+  }
+
+  private static List<String> projects(List<UsageInfo> uses) {
+    List<String> projects = new ArrayList<>();
+    for (UsageInfo u : uses) {
+      projects.add(u.project);
+    }
+    return projects;
+  }
+}
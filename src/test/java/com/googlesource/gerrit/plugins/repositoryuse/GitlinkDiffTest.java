@@ -0,0 +1,141 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import org.eclipse.jgit.internal.storage.dfs.DfsRepositoryDescription;
+import org.eclipse.jgit.internal.storage.dfs.InMemoryRepository;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.FileMode;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectInserter;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.TreeFormatter;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class GitlinkDiffTest {
+  private static final ObjectId SUB_A = id(1);
+  private static final ObjectId SUB_B = id(2);
+
+  private InMemoryRepository repo;
+  private ObjectInserter inserter;
+  private ObjectReader reader;
+
+  @Before
+  public void setUp() {
+    repo = new InMemoryRepository(new DfsRepositoryDescription("test"));
+    inserter = repo.newObjectInserter();
+    reader = repo.newObjectReader();
+  }
+
+  @After
+  public void tearDown() {
+    reader.close();
+    inserter.close();
+    repo.close();
+  }
+
+  @Test
+  public void unchangedTree() throws IOException {
+    ObjectId tree = tree(file("README", "a"), gitlink("sub", SUB_A));
+    assertThat(GitlinkDiff.hasChanges(reader, tree, tree)).isFalse();
+  }
+
+  @Test
+  public void changedBlobOnly() throws IOException {
+    ObjectId before = tree(file("README", "a"), gitlink("sub", SUB_A));
+    ObjectId after = tree(file("README", "b"), gitlink("sub", SUB_A));
+    assertThat(GitlinkDiff.hasChanges(reader, before, after)).isFalse();
+  }
+
+  @Test
+  public void changedGitlink() throws IOException {
+    ObjectId before = tree(file("README", "a"), gitlink("sub", SUB_A));
+    ObjectId after = tree(file("README", "a"), gitlink("sub", SUB_B));
+    assertThat(GitlinkDiff.hasChanges(reader, before, after)).isTrue();
+  }
+
+  @Test
+  public void addedAndRemovedGitlink() throws IOException {
+    ObjectId without = tree(file("README", "a"));
+    ObjectId with = tree(file("README", "a"), gitlink("sub", SUB_A));
+    assertThat(GitlinkDiff.hasChanges(reader, without, with)).isTrue();
+    assertThat(GitlinkDiff.hasChanges(reader, with, without)).isTrue();
+  }
+
+  @Test
+  public void gitlinkInSubtree() throws IOException {
+    ObjectId other = tree(file("x", "x"));
+    ObjectId before = tree(dir("dir", tree(gitlink("sub", SUB_A))),
+        dir("other", other));
+    ObjectId after = tree(dir("dir", tree(gitlink("sub", SUB_B))),
+        dir("other", other));
+    assertThat(GitlinkDiff.hasChanges(reader, before, after)).isTrue();
+  }
+
+  @Test
+  public void noPreviousTree() throws IOException {
+    assertThat(GitlinkDiff.hasChanges(reader, null,
+        tree(file("README", "a")))).isFalse();
+    assertThat(GitlinkDiff.hasChanges(reader, null,
+        tree(gitlink("sub", SUB_A)))).isTrue();
+  }
+
+  private Entry file(String name, String content) throws IOException {
+    return new Entry(name, FileMode.REGULAR_FILE,
+        inserter.insert(Constants.OBJ_BLOB, content.getBytes(UTF_8)));
+  }
+
+  private static Entry gitlink(String name, ObjectId commit) {
+    return new Entry(name, FileMode.GITLINK, commit);
+  }
+
+  private static Entry dir(String name, ObjectId tree) {
+    return new Entry(name, FileMode.TREE, tree);
+  }
+
+  /** @param entries the entries of the tree, in tree order */
+  private ObjectId tree(Entry... entries) throws IOException {
+    TreeFormatter f = new TreeFormatter();
+    for (Entry e : entries) {
+      f.append(e.name, e.mode, e.id);
+    }
+    ObjectId tree = inserter.insert(f);
+    inserter.flush();
+    return tree;
+  }
+
+  private static ObjectId id(int n) {
+    return ObjectId.fromRaw(new int[] {n, 0, 0, 0, 0});
+  }
+
+  private static class Entry {
+    final String name;
+    final FileMode mode;
+    final ObjectId id;
+
+    Entry(String name, FileMode mode, ObjectId id) {
+      this.name = name;
+      this.mode = mode;
+      this.id = id;
+    }
+  }
+}
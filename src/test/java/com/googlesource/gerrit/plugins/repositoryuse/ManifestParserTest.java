@@ -0,0 +1,151 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableMap;
+
+import com.googlesource.gerrit.plugins.repositoryuse.ManifestParser.Manifest;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ManifestParserTest {
+  private static final String REMOTE =
+      "<remote name=\"origin\" fetch=\"https://host/\"/>"
+      + "<default remote=\"origin\" revision=\"master\"/>";
+
+  @Test
+  public void projects() {
+    Map<String, String> projects = new ManifestParser().parseManifest(
+        manifest(REMOTE + "<project name=\"a\"/>"
+            + "<project name=\"b.git\" revision=\"stable\"/>"));
+    assertThat(projects).isEqualTo(ImmutableMap.of(
+        "https://host/a", "master",
+        "https://host/b", "stable"));
+  }
+
+  @Test
+  public void include() {
+    Map<String, Manifest> includes = new HashMap<>();
+    includes.put("extra.xml", parse("<project name=\"c\"/>"));
+    Manifest root = parse(REMOTE + "<project name=\"a\"/>"
+        + "<include name=\"extra.xml\"/>"
+        + "<include name=\"missing.xml\"/>");
+    assertThat(root.getIncludes())
+        .containsExactly("extra.xml", "missing.xml").inOrder();
+    assertThat(new ManifestParser().resolve(root, includes))
+        .isEqualTo(ImmutableMap.of(
+            "https://host/a", "master",
+            "https://host/c", "master"));
+  }
+
+  @Test
+  public void removeProject() {
+    Map<String, String> projects = new ManifestParser().parseManifest(
+        manifest(REMOTE + "<project name=\"a\"/>"
+            + "<project name=\"b\"/>"
+            + "<remove-project name=\"a.git\"/>"
+            + "<project name=\"a\" revision=\"next\"/>"));
+    assertThat(projects).isEqualTo(ImmutableMap.of(
+        "https://host/b", "master",
+        "https://host/a", "next"));
+  }
+
+  @Test
+  public void extendProject() {
+    Map<String, String> projects = new ManifestParser().parseManifest(
+        manifest(REMOTE + "<remote name=\"other\" fetch=\"https://other\"/>"
+            + "<project name=\"a\"/>"
+            + "<project name=\"b\"/>"
+            + "<extend-project name=\"a\" remote=\"other\" branch=\"dev\"/>"
+            + "<extend-project name=\"b\"/>"));
+    assertThat(projects).isEqualTo(ImmutableMap.of(
+        "https://other/a", "dev",
+        "https://host/b", "master"));
+  }
+
+  @Test
+  public void includeCycle() {
+    Map<String, Manifest> includes = new HashMap<>();
+    Manifest root = parse(REMOTE + "<project name=\"a\"/>"
+        + "<include name=\"one.xml\"/>");
+    includes.put("root.xml", root);
+    includes.put("one.xml", parse("<project name=\"b\"/>"
+        + "<include name=\"two.xml\"/>"));
+    includes.put("two.xml", parse("<project name=\"c\"/>"
+        + "<include name=\"one.xml\"/>"
+        + "<include name=\"root.xml\"/>"));
+    assertThat(new ManifestParser().resolve(root, includes))
+        .isEqualTo(ImmutableMap.of(
+            "https://host/a", "master",
+            "https://host/b", "master",
+            "https://host/c", "master"));
+  }
+
+  @Test
+  public void nestedElementsAreIgnored() {
+    Map<String, String> projects = new ManifestParser().parseManifest(
+        manifest(REMOTE + "<project name=\"a\">"
+            + "<project name=\"nested\"/></project>"));
+    assertThat(projects).isEqualTo(ImmutableMap.of("https://host/a", "master"));
+  }
+
+  @Test
+  public void malformedManifestKeepsPrecedingElements() {
+    Manifest m = ManifestParser.parse(new ByteArrayInputStream(
+        ("<manifest>" + REMOTE + "<project name=\"a\"/><project")
+            .getBytes(UTF_8)));
+    assertThat(m.isValid()).isFalse();
+    assertThat(new ManifestParser().resolve(m,
+        new HashMap<String, Manifest>()))
+        .isEqualTo(ImmutableMap.of("https://host/a", "master"));
+  }
+
+  /**
+   * DTDs are not supported, so internal entities are not expanded either:
+   * the manifest is invalid from the first reference on.
+   */
+  @Test
+  public void internalEntityIsNotExpanded() {
+    byte[] contents = ("<?xml version=\"1.0\"?>"
+        + "<!DOCTYPE manifest [<!ENTITY x \"master\">]>"
+        + "<manifest>"
+        + "<remote name=\"origin\" fetch=\"https://host\"/>"
+        + "<default remote=\"origin\" revision=\"&x;\"/>"
+        + "<project name=\"a\"/>"
+        + "</manifest>").getBytes(UTF_8);
+    assertThat(ManifestParser.parse(new ByteArrayInputStream(contents))
+        .isValid()).isFalse();
+    assertThat(new ManifestParser().parseManifest(contents)).isEmpty();
+  }
+
+  private static Manifest parse(String elements) {
+    Manifest m = ManifestParser.parse(
+        new ByteArrayInputStream(manifest(elements)));
+    assertThat(m.isValid()).isTrue();
+    return m;
+  }
+
+  private static byte[] manifest(String elements) {
+    return ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><manifest>" + elements
+        + "</manifest>").getBytes(UTF_8);
+  }
+}
@@ -0,0 +1,97 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ProjectNamesTest {
+  private static final String PROJECT = "platform/build";
+  private static final String MANIFEST = "platform/manifest:default.xml";
+
+  private ProjectNames names;
+
+  @Before
+  public void setUp() {
+    names = new ProjectNames("https://gerrit.example/r/", 16);
+  }
+
+  @Test
+  public void schemeEnd() {
+    assertThat(ProjectNames.schemeEnd("https://host/a")).isEqualTo(8);
+    assertThat(ProjectNames.schemeEnd("git+ssh://host/a")).isEqualTo(10);
+    assertThat(ProjectNames.schemeEnd("host/a")).isEqualTo(-1);
+    assertThat(ProjectNames.schemeEnd("://host/a")).isEqualTo(-1);
+    assertThat(ProjectNames.schemeEnd("host:a")).isEqualTo(-1);
+  }
+
+  @Test
+  public void canonicalProject() {
+    assertThat(names.getCanonicalProject(PROJECT))
+        .isEqualTo("gerrit.example/platform/build");
+    assertThat(names.getLocalProject("gerrit.example/platform/build"))
+        .isEqualTo(PROJECT);
+    assertThat(names.getLocalProject("other.example/platform/build"))
+        .isNull();
+  }
+
+  @Test
+  public void absoluteUrls() {
+    assertThat(normalize("https://host.example/a/b.git"))
+        .isEqualTo("host.example/a/b");
+    assertThat(normalize("ssh://user@host.example:29418/a/b/"))
+        .isEqualTo("host.example/a/b");
+    assertThat(normalize("git://host.example/a/../b"))
+        .isEqualTo("host.example/b");
+  }
+
+  @Test
+  public void pathsOnThisServer() {
+    assertThat(normalize("/tools/repo"))
+        .isEqualTo("gerrit.example/tools/repo");
+    assertThat(normalize("../tools/repo.git"))
+        .isEqualTo("gerrit.example/platform/tools/repo");
+    assertThat(normalize("./sub"))
+        .isEqualTo("gerrit.example/platform/build/sub");
+    assertThat(normalize("sub"))
+        .isEqualTo("gerrit.example/platform/build/sub");
+  }
+
+  @Test
+  public void pathsRelativeToManifest() {
+    assertThat(names.normalizePath(MANIFEST, "sub", true))
+        .isEqualTo("gerrit.example/platform/manifest/sub");
+    assertThat(names.normalizePath(MANIFEST, "https://host.example/a", true))
+        .isEqualTo("host.example/a");
+  }
+
+  @Test
+  public void uncPathsAreKept() {
+    assertThat(normalize("//server/share/a")).isEqualTo("//server/share/a");
+  }
+
+  @Test
+  public void resultsAreInterned() {
+    assertThat(normalize("https://host.example/a"))
+        .isSameAs(names.normalizePath("other", "https://host.example/a.git",
+            false));
+  }
+
+  private String normalize(String destination) {
+    return names.normalizePath(PROJECT, destination, false);
+  }
+}
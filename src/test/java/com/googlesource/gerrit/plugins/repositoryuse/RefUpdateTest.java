@@ -0,0 +1,89 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.eclipse.jgit.lib.ObjectId;
+import org.junit.Test;
+
+public class RefUpdateTest {
+  private static final String PROJECT = "platform/build";
+  private static final String REF = "refs/heads/master";
+  private static final String ZERO = ObjectId.zeroId().name();
+  private static final String A = id(1);
+  private static final String B = id(2);
+  private static final String C = id(3);
+
+  @Test
+  public void updatesSpanFromFirstToLast() {
+    RefUpdate merged = update(A, B).merge(update(B, C));
+    assertThat(merged.getProjectName()).isEqualTo(PROJECT);
+    assertThat(merged.getRefName()).isEqualTo(REF);
+    assertThat(merged.getOldObjectId()).isEqualTo(A);
+    assertThat(merged.getNewObjectId()).isEqualTo(C);
+    assertThat(merged.isCreate()).isFalse();
+    assertThat(merged.isDelete()).isFalse();
+  }
+
+  @Test
+  public void chainedMergesKeepFirstOldId() {
+    RefUpdate merged =
+        update(A, B).merge(update(B, C)).merge(update(C, B));
+    assertThat(merged.getOldObjectId()).isEqualTo(A);
+    assertThat(merged.getNewObjectId()).isEqualTo(B);
+  }
+
+  @Test
+  public void createThenUpdateIsCreate() {
+    RefUpdate merged = update(ZERO, A).merge(update(A, B));
+    assertThat(merged.isCreate()).isTrue();
+    assertThat(merged.isDelete()).isFalse();
+    assertThat(merged.getNewObjectId()).isEqualTo(B);
+  }
+
+  @Test
+  public void updateThenDeleteIsDelete() {
+    RefUpdate merged = update(A, B).merge(update(B, ZERO));
+    assertThat(merged.isCreate()).isFalse();
+    assertThat(merged.isDelete()).isTrue();
+    assertThat(merged.getOldObjectId()).isEqualTo(A);
+  }
+
+  @Test
+  public void deleteThenCreateIsUpdate() {
+    RefUpdate merged = update(A, ZERO).merge(update(ZERO, B));
+    assertThat(merged.isCreate()).isFalse();
+    assertThat(merged.isDelete()).isFalse();
+    assertThat(merged.getOldObjectId()).isEqualTo(A);
+    assertThat(merged.getNewObjectId()).isEqualTo(B);
+  }
+
+  /** A ref created and deleted again is handled as a deletion. */
+  @Test
+  public void createThenDeleteIsBoth() {
+    RefUpdate merged = update(ZERO, A).merge(update(A, ZERO));
+    assertThat(merged.isCreate()).isTrue();
+    assertThat(merged.isDelete()).isTrue();
+  }
+
+  private static RefUpdate update(String oldId, String newId) {
+    return new RefUpdate(PROJECT, REF, oldId, newId);
+  }
+
+  private static String id(int n) {
+    return ObjectId.fromRaw(new int[] {n, 0, 0, 0, 0}).name();
+  }
+}
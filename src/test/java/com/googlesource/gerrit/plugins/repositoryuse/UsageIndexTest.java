@@ -0,0 +1,102 @@
+// Copyright (C) 2015 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.googlesource.gerrit.plugins.repositoryuse;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gerrit.metrics.DisabledMetricMaker;
+import com.google.gerrit.server.config.PluginConfig;
+import com.google.inject.AbstractModule;
+import com.google.inject.Guice;
+import com.google.inject.util.Providers;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/** Checks the query plans of reverse dependency lookups on H2. */
+public class UsageIndexTest {
+  private static final String INDEX = "REPOUSAGE_DESTINATION_REF";
+  private static final SQLDriver.RowMapper<String> PLAN =
+      new SQLDriver.RowMapper<String>() {
+        @Override
+        public String map(ResultSet r) throws SQLException {
+          return r.getString(1);
+        }
+      };
+
+  private static SQLDriver sql;
+
+  @BeforeClass
+  public static void setUp() throws SQLException {
+    org.eclipse.jgit.lib.Config cfg = new org.eclipse.jgit.lib.Config();
+    cfg.setString("plugin", "repository-usage", "database",
+        "mem:" + UsageIndexTest.class.getSimpleName() + ";DB_CLOSE_DELAY=-1");
+    Config.load(new PluginConfig("repository-usage", cfg));
+    sql = new SQLDriver(new Metrics(new DisabledMetricMaker(),
+        Providers.<SQLDriver> of(null), Providers.<RefUpdateQueue> of(null),
+        Providers.<ScanProgress> of(null)));
+    Guice.createInjector(new AbstractModule() {
+      @Override
+      protected void configure() {
+        bind(SQLDriver.class).toInstance(sql);
+        bind(DependencyGraph.class).toInstance(new DependencyGraph(0));
+        requestStaticInjection(Schema.class, Usage.Table.class);
+      }
+    });
+    // Creates the table and applies the migrations
+    new Usage.Table();
+
+    SQLDriver.Batch batch = new SQLDriver.Batch();
+    for (int i = 0; i < 1000; i++) {
+      batch.add("INSERT INTO RepoUsage(project, branch, destination, ref)"
+          + " VALUES (?, ?, ?, ?)", "host/p" + i, "refs/heads/master",
+          "host/d" + (i % 100), "refs/heads/master");
+    }
+    sql.execute(batch);
+    sql.execute("ANALYZE");
+  }
+
+  @AfterClass
+  public static void tearDown() throws SQLException {
+    sql.execute("DROP ALL OBJECTS");
+    sql.stop();
+  }
+
+  @Test
+  public void dependencyLookupUsesIndex() throws SQLException {
+    assertThat(explain(Usage.Table.getDependencyQuery(), "host/d1"))
+        .contains(INDEX + ": DESTINATION = ?1 */");
+  }
+
+  @Test
+  public void dependencyAndRefLookupUsesIndex() throws SQLException {
+    assertThat(explain("SELECT project FROM RepoUsage"
+        + " WHERE destination=? AND ref=?", "host/d1", "refs/heads/master"))
+        .contains(INDEX + ": DESTINATION = ?1 AND REF = ?2 */");
+  }
+
+  /** @return the plan of a query, with all whitespace collapsed */
+  private static String explain(String query, Object... parameters)
+      throws SQLException {
+    List<String> plan = sql.fetch("EXPLAIN " + query, PLAN, parameters);
+    assertThat(plan).hasSize(1);
+    return plan.get(0).replaceAll("\\s+", " ");
+  }
+}